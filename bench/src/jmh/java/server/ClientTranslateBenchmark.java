@@ -0,0 +1,69 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description Time for the client's Translate button on a long chat: Client.translate() runs
+ * every line the chat keeps through a TO_ENGLISH translator into a reused builder; here the
+ * lines are joined, which does the same translating work in one call. The chat is made of
+ * broadcast lines translated to bee, picked with a fixed seed so every run sees the same text.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ClientTranslateBenchmark {
+
+    private static final String[] MESSAGES = {
+            "hello everyone, how are you today",
+            "the quick brown fox jumps over the lazy dog",
+            "I think we should all go home now",
+            "what time is the meeting tomorrow morning",
+            "has anyone seen my keys, I left them on the table",
+    };
+
+    @Param({"1000", "10000"})
+    public int lines;
+
+    private BeeTranslator translator;
+    private String chat;
+    private final StringBuilder translated = new StringBuilder();
+
+    @Setup
+    public void setUp() throws IOException {
+        BeeDictionary dictionary = BeeDictionary.read("src/server/d2.txt");
+        BeeTranslator toBee = new BeeTranslator(dictionary, BeeDictionary.Direction.TO_BEE, true);
+        translator = new BeeTranslator(dictionary, BeeDictionary.Direction.TO_ENGLISH, false);
+        Random random = new Random(42);
+        StringBuilder chat = new StringBuilder("BeeHarmony™");
+        for (int i = 0; i < lines; i++) {
+            chat.append("\nuser").append(random.nextInt(50)).append(": ");
+            toBee.translate(MESSAGES[random.nextInt(MESSAGES.length)], chat);
+        }
+        this.chat = chat.toString();
+    }
+
+    @Benchmark
+    public int translate() {
+        translated.setLength(0);
+        translator.translate(chat, translated);
+        return translated.length();
+    }
+
+}
@@ -0,0 +1,61 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description How long Server.readDictionary() takes to load d2.txt: parsing the text, as on
+ * the first start or after an edit, and mapping the compiled form, as on every other start.
+ * The compiled form goes to a temporary directory so src/server/d2.bin is left alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class DictionaryLoadBenchmark {
+
+    private static final String TEXT = "src/server/d2.txt";
+
+    private Path directory;
+    private String binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("dictionary");
+        binary = directory.resolve("d2.bin").toString();
+        BeeDictionary.compile(TEXT, binary);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Path.of(binary));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public BeeDictionary read() throws IOException {
+        return BeeDictionary.read(TEXT);
+    }
+
+    @Benchmark
+    public BeeDictionary map() throws IOException {
+        return BeeDictionary.map(binary);
+    }
+
+}
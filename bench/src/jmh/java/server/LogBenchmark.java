@@ -0,0 +1,61 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description What a connection thread pays to log: a record below the level, which is
+ * skipped, and one that is recorded for the writer thread. Both streams are discarded, so the
+ * writer runs at full speed; when it falls behind, records are dropped rather than waited for,
+ * and the drops are printed at the end of each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class LogBenchmark {
+
+    private PrintStream out;
+    private long dropped;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        Log.setLevel(Log.Level.INFO);
+    }
+
+    @TearDown(Level.Iteration)
+    public void dropped() {
+        out.println("dropped " + (Log.dropped() - dropped) + " records");
+        dropped = Log.dropped();
+    }
+
+    @Benchmark
+    public void filtered() {
+        Log.debug("socket.closed", "name", "bench");
+    }
+
+    @Benchmark
+    public void recorded() {
+        Log.info("user.login", "name", "bench");
+    }
+
+}
@@ -0,0 +1,47 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description The cost of one password check: the MD5 hashes stored before PBKDF2, which are
+ * still checked once for each user who hasn't logged in since, and PBKDF2 at a cheap and at
+ * the default cost. The salt is fixed so every run hashes the same input.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2)
+public class PasswordBenchmark {
+
+    private static final String PASSWORD = "correct horse battery staple";
+    private static final byte[] SALT = new byte[16];
+
+    @State(Scope.Thread)
+    public static class Cost {
+        @Param({"1000", "600000"})
+        public int iterations;
+    }
+
+    @Benchmark
+    public String md5() {
+        return PasswordHasher.md5(PASSWORD);
+    }
+
+    @Benchmark
+    public String pbkdf2(Cost cost) {
+        return PasswordHasher.pbkdf2(PASSWORD, SALT, cost.iterations);
+    }
+
+}
@@ -0,0 +1,94 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description Lines a session delivers per millisecond over loopback: a burst of lines is
+ * queued on a SocketSession and timed until a reader on the other end has received every byte.
+ * The session's writer thread drains, buffers and flushes the queue as it would for a client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@OperationsPerInvocation(SessionWriteBenchmark.LINES)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class SessionWriteBenchmark {
+
+    static final int LINES = 1000; // lines per burst, below the default queue size
+
+    @Param({"32", "512"})
+    public int lineBytes;
+
+    private ServerSocket listener;
+    private Socket client;
+    private SocketSession session;
+    private Payload line;
+    private final AtomicLong received = new AtomicLong();
+    private long expected;
+
+    @Setup
+    public void setUp() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        session = new SocketSession(listener.accept(), new ServerConfig(), task -> {
+            Thread thread = new Thread(task, "writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        line = Payload.line("x".repeat(lineBytes - 1));
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = client.getInputStream()) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    received.addAndGet(n);
+                }
+            } catch (IOException e) {
+                // closed by tearDown()
+            }
+        }, "reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        session.abort();
+        client.close();
+        listener.close();
+    }
+
+    @Benchmark
+    public void burst() {
+        for (int i = 0; i < LINES; i++) {
+            session.enqueue(line);
+        }
+        expected += (long) LINES * line.length();
+        while (received.get() < expected) {
+            Thread.onSpinWait();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description Throughput of turning a chat message into a broadcast line, the work
+ * Server.send() does once per message: translate to bee with d2.txt and encode the line, or
+ * find the translation in the cache. It repeats the steps of Server.encode(), which is private
+ * to a running server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class TranslationBenchmark {
+
+    @Param({"short", "long"})
+    public String size;
+
+    private String message;
+    private BeeTranslator translator;
+    private TranslationCache cache;
+    private final StringBuilder line = new StringBuilder(256);
+
+    @Setup
+    public void setUp() throws IOException {
+        translator = new BeeTranslator(BeeDictionary.read("src/server/d2.txt"), BeeDictionary.Direction.TO_BEE, true);
+        message = size.equals("short") ? "hello everyone, how are you today"
+                : "Hello everyone, the quick brown fox jumps over the lazy dog and then we all go home. ".repeat(5);
+        cache = new TranslationCache(4L << 20);
+        StringBuilder bee = new StringBuilder();
+        translator.translate(message, bee);
+        cache.put(message, translator, bee.toString());
+    }
+
+    /**
+     * a message seen for the first time
+     */
+    @Benchmark
+    public Payload translate() {
+        line.setLength(0);
+        line.append("bench: ");
+        translator.translate(message, line);
+        return Payload.line(line);
+    }
+
+    /**
+     * a message whose translation is cached
+     */
+    @Benchmark
+    public Payload cached() {
+        line.setLength(0);
+        line.append("bench: ").append(cache.get(message, translator));
+        return Payload.line(line);
+    }
+
+}
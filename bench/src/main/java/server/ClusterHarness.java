@@ -0,0 +1,228 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * @description Starts a cluster of Server processes on this machine, logs a user in on each
+ * node and checks that broadcasts, private messages, presence and the /list roster reach
+ * across nodes. Each node gets its own client port, cluster port and data directory.
+ * Run from the project root with the server classes on the classpath, e.g.
+ * "java -cp out server.ClusterHarness 3".
+ */
+public class ClusterHarness {
+
+    private static final int CLIENT_PORT = 5100;
+    private static final int CLUSTER_PORT = 6100;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        Path data = Files.createTempDirectory("cluster");
+        List<Process> servers = new ArrayList<>();
+        List<Client> clients = new ArrayList<>();
+        int failures = 0;
+        try {
+            for (int i = 0; i < nodes; i++) {
+                servers.add(startNode(i, nodes, data));
+            }
+            Thread.sleep(3000); // let the peers find each other
+
+            for (int i = 0; i < nodes; i++) {
+                clients.add(new Client(CLIENT_PORT + i, "user" + i));
+            }
+            Thread.sleep(1500); // presence travels between nodes
+
+            Client first = clients.get(0);
+            first.skip();
+            first.send("/list");
+            first.await("Users in lobby:");
+            List<String> roster = first.block();
+            for (int i = 0; i < nodes; i++) {
+                failures += check("node 0 lists user" + i, roster.contains("user" + i));
+            }
+
+            clients.get(nodes - 1).send("hello from the last node");
+            for (int i = 0; i < nodes - 1; i++) {
+                failures += check("user" + i + " gets a broadcast from node " + (nodes - 1),
+                        clients.get(i).await("user" + (nodes - 1) + ": "));
+            }
+
+            first.send("/pm user" + (nodes - 1) + " psst");
+            failures += check("a private message crosses nodes", clients.get(nodes - 1).await("PM from user0: psst"));
+
+            clients.get(1).send("/join hive");
+            clients.get(nodes - 1).send("/join hive");
+            failures += check("room joins cross nodes", clients.get(1).await("user" + (nodes - 1) + " has joined hive."));
+            first.send("should stay in the lobby");
+            failures += check("rooms stay apart across nodes", !clients.get(1).awaitQuietly("user0: ", 1000));
+
+            clients.get(1).close();
+            failures += check("a disconnect is seen on other nodes", clients.get(nodes - 1).await("user1 has left"));
+            Thread.sleep(500);
+            first.send("/rooms");
+            failures += check("the cluster-wide room sizes are listed", first.await("hive (1)"));
+
+            // a new account is copied to every node
+            Client signedUp = new Client(CLIENT_PORT, "fresh0");
+            signedUp.close();
+            Thread.sleep(1000);
+            failures += check("an account made on node 0 logs in on node " + (nodes - 1),
+                    Client.login(CLIENT_PORT + nodes - 1, "fresh0"));
+        } finally {
+            for (Client client : clients) {
+                client.close();
+            }
+            for (Process server : servers) {
+                server.destroy();
+                server.waitFor(5, TimeUnit.SECONDS);
+            }
+            try (Stream<Path> files = Files.walk(data)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static Process startNode(int i, int nodes, Path data) throws IOException {
+        List<String> peers = new ArrayList<>();
+        for (int j = 0; j < nodes; j++) {
+            if (j != i) {
+                peers.add("localhost:" + (CLUSTER_PORT + j));
+            }
+        }
+        Path dir = Files.createDirectories(data.resolve("node" + i));
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "server.Server",
+                "--port=" + (CLIENT_PORT + i), "--node=node" + i, "--cluster-port=" + (CLUSTER_PORT + i),
+                "--peers=" + String.join(",", peers), "--data-dir=" + dir, "--hash-iterations=1000",
+                "--reload-dictionary=false")
+                .redirectOutput(dir.resolve("out.txt").toFile())
+                .redirectErrorStream(true)
+                .start();
+    }
+
+    private static int check(String what, boolean passed) {
+        System.out.println((passed ? "ok     " : "FAILED ") + what);
+        return passed ? 0 : 1;
+    }
+
+    /**
+     * @description a logged in chat user, its lines collected by a reader thread
+     */
+    private static final class Client {
+
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+        Client(int port, String name) throws IOException {
+            this.socket = new Socket("localhost", port);
+            this.out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            in.readLine(); // "0"
+            out.println("0"); // sign up
+            out.println(name);
+            out.println("password");
+            String reply;
+            while ((reply = in.readLine()) != null && !reply.equals("4")) {
+                // "10" asks for the password, "4" means signed up
+            }
+            if (reply == null) {
+                throw new IOException(name + " could not sign up");
+            }
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * login
+         * @description true if an existing user can log in on a node
+         */
+        static boolean login(int port, String name) throws IOException {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setSoTimeout((int) TIMEOUT_MILLIS);
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                in.readLine(); // "0"
+                out.println(name);
+                if (!"3".equals(in.readLine())) {
+                    return false;
+                }
+                out.println("password");
+                return "4".equals(in.readLine());
+            }
+        }
+
+        /**
+         * skip
+         * @description forgets the lines received so far
+         */
+        void skip() {
+            lines.clear();
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        boolean await(String text) throws InterruptedException {
+            return awaitQuietly(text, TIMEOUT_MILLIS);
+        }
+
+        boolean awaitQuietly(String text, long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            String line;
+            while ((line = lines.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) != null) {
+                if (line.contains(text)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * block
+         * @description the lines between the next two dashed rules, as /list frames them
+         */
+        List<String> block() throws InterruptedException {
+            List<String> block = new ArrayList<>();
+            await("------");
+            String line;
+            while ((line = lines.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) != null && !line.startsWith("------")) {
+                block.add(line);
+            }
+            return block;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+}
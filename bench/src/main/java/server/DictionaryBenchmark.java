@@ -0,0 +1,94 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @description Compares the heap footprint and lookup speed of the HashMaps the server and
+ * client used to build from d2.txt against a single BeeDictionary.
+ * Run from the project root so src/server/d2.txt can be found.
+ */
+public class DictionaryBenchmark {
+
+    private static final String FILE = "src/server/d2.txt";
+    private static final int LOOKUPS = 2_000_000;
+
+    public static void main(String[] args) throws IOException {
+        List<String> words = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(FILE))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                words.add(line.substring(0, line.indexOf(':')));
+            }
+        }
+
+        long before = usedHeap();
+        Map<String, String> toBee = new HashMap<>();
+        Map<String, String> toEnglish = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(FILE))) {
+            while (in.ready()) {
+                String[] curr = in.readLine().split(":");
+                toBee.put(curr[0], curr[1]);
+                toEnglish.put(curr[1], curr[0]);
+            }
+        }
+        long maps = usedHeap() - before;
+
+        before = usedHeap();
+        BeeDictionary dictionary = BeeDictionary.read(FILE);
+        long packed = usedHeap() - before;
+
+        System.out.printf("heap: two HashMaps %.1f MB, BeeDictionary %.1f MB (%d words)%n",
+                maps / 1e6, packed / 1e6, dictionary.size());
+
+        // a message made of every word, looked up by range in the same way BeeTranslator does
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        int[] bounds = new int[4096 * 2];
+        for (int i = 0; i < bounds.length; i += 2) {
+            bounds[i] = text.length();
+            text.append(words.get(random.nextInt(words.size())));
+            bounds[i + 1] = text.length();
+            text.append(' ');
+        }
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                int w = (i & 4095) * 2;
+                if (toBee.get(text.substring(bounds[w], bounds[w + 1])) != null) { // the old path needs a substring
+                    hits++;
+                }
+            }
+            long map = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                int w = (i & 4095) * 2;
+                if (dictionary.find(BeeDictionary.Direction.TO_BEE, text, bounds[w], bounds[w + 1]) >= 0) {
+                    hits++;
+                }
+            }
+            long range = System.nanoTime() - start;
+            System.out.printf("lookup: HashMap %.1f ns, BeeDictionary %.1f ns (%d hits)%n",
+                    (double) map / LOOKUPS, (double) range / LOOKUPS, hits);
+        }
+        if (toEnglish.isEmpty()) {
+            System.out.println(); // keep both maps reachable until the end
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
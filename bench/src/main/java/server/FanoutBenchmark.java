@@ -0,0 +1,107 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @description Compares broadcasting by translating for every recipient, as Server.send()
+ * used to, against translating and encoding once and sharing the payload.
+ * Run from the project root so src/server/d2.txt can be found.
+ */
+public class FanoutBenchmark {
+
+    private static final String MESSAGE = "Hello everyone, the quick brown fox jumps over the lazy dog and then we all go home";
+    private static final int MESSAGES = 200;
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> dictionary = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader("src/server/d2.txt"))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] entry = line.split(":");
+                dictionary.put(entry[0], entry[1]);
+            }
+        }
+        BeeTranslator translator = new BeeTranslator(BeeDictionary.read("src/server/d2.txt"), BeeDictionary.Direction.TO_BEE, true);
+        ServerConfig config = new ServerConfig();
+        for (int recipients : new int[]{100, 1_000, 10_000}) {
+            List<ClientSession> sessions = new ArrayList<>();
+            for (int i = 0; i < recipients; i++) {
+                sessions.add(new DiscardSession(config));
+            }
+            perRecipient(sessions, dictionary); // warm up
+            once(sessions, translator);
+            long perRecipient = perRecipient(sessions, dictionary);
+            long once = once(sessions, translator);
+            System.out.printf("%6d recipients: per-recipient %8.1f us/msg, once %8.1f us/msg, %5.1fx%n",
+                    recipients, perRecipient / 1e3 / MESSAGES, once / 1e3 / MESSAGES, (double) perRecipient / once);
+        }
+    }
+
+    /**
+     * the old send(): split, look up and concatenate for every session
+     */
+    private static long perRecipient(List<ClientSession> sessions, Map<String, String> dictionary) {
+        long start = System.nanoTime();
+        for (int m = 0; m < MESSAGES; m++) {
+            for (ClientSession session : sessions) {
+                String finalMessage = "";
+                for (String aTemp : MESSAGE.split(" ")) {
+                    if (dictionary.containsKey(aTemp)) {
+                        finalMessage += dictionary.get(aTemp) + " ";
+                    } else if (dictionary.containsKey(aTemp.toLowerCase())) {
+                        finalMessage += dictionary.get(aTemp.toLowerCase()) + " ";
+                    } else {
+                        finalMessage += aTemp + " ";
+                    }
+                }
+                session.write("bench: " + finalMessage);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * the current send(): one translation, one payload shared by every session
+     */
+    private static long once(List<ClientSession> sessions, BeeTranslator translator) {
+        StringBuilder line = new StringBuilder();
+        long start = System.nanoTime();
+        for (int m = 0; m < MESSAGES; m++) {
+            line.setLength(0);
+            translator.translate(MESSAGE, line.append("bench: "));
+            Payload payload = Payload.line(line);
+            for (ClientSession session : sessions) {
+                session.enqueue(payload);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * a session whose writer keeps up instantly, so only the fan-out itself is measured
+     */
+    private static class DiscardSession extends ClientSession {
+
+        DiscardSession(ServerConfig config) {
+            super(config.queueSize, config.overflow);
+        }
+
+        void wakeWriter() {
+            outbound().poll();
+        }
+
+        void abort() {
+        }
+
+        boolean disconnect() {
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,663 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * @description Simulates many chat users against a server on this machine, speaking the text
+ * protocol: each session signs up (or logs in if its account exists) through the codes of
+ * ClientHandler.authenticate(), then sends at a Poisson rate a mix of chat messages, /pm,
+ * /list and /nick. Every session runs on two virtual threads, so thousands are cheap.
+ *
+ * Chat and private messages carry a marker with the time they were sent, which every receiver
+ * turns into a delivery latency; /list is timed until its reply. Each report gives the rates
+ * and latency percentiles of the last interval, and the end of the run totals everything after
+ * the warmup. Run from the project root, e.g.
+ * "java -cp out server.LoadGenerator --spawn=true --sessions=1000 --rate=0.5 --rooms=10".
+ * A server started by hand should get --rate-limit=0 --ip-rate-limit=0, since every session
+ * comes from the same address.
+ *
+ * Options, as --key=value:
+ *   host, port         where the server is (127.0.0.1:5000)
+ *   spawn              start a server on port with a fresh data directory and no rate limits (false)
+ *   server-args        more options for the spawned server, separated by spaces
+ *   sessions           concurrent sessions (100)
+ *   rate               actions per second per session, 0 only listens (1)
+ *   mix                weights of each action (chat:90,pm:5,list:3,nick:2)
+ *   rooms              sessions are spread over this many rooms, the first being the lobby (1)
+ *   duration, warmup   seconds to run, and to leave out of the totals (30, 5)
+ *   report             seconds between reports (5)
+ *   connects           sessions authenticating at once (32)
+ *   name, password     the accounts used are name0, name1... (load, load)
+ *   seed               for the send times and the action picked (1)
+ */
+public class LoadGenerator {
+
+    private static final String MARKER = "#L"; // #L<sent nanos>, passed through by the translator
+
+    private static final String[] ACTIONS = {"chat", "pm", "list", "nick"};
+    private static final int CHAT = 0;
+    private static final int PM = 1;
+    private static final int LIST = 2;
+    private static final int NICK = 3;
+
+    private String host = "127.0.0.1";
+    private int port = 5000;
+    private boolean spawn;
+    private String serverArgs = "";
+    private int sessions = 100;
+    private double rate = 1;
+    private int[] mix = {90, 5, 3, 2};
+    private int rooms = 1;
+    private int duration = 30;
+    private int warmup = 5;
+    private int report = 5;
+    private int connects = 32;
+    private String name = "load";
+    private String password = "load";
+    private long seed = 1;
+
+    private volatile boolean running = true;
+    private volatile boolean measuring; // past the warmup
+    private AtomicReferenceArray<String> names; // the current name of each session, for /pm and /nick
+
+    private final Stats interval = new Stats(); // since the last report
+    private final Stats total = new Stats(); // since the warmup
+    private final LongAdder busy = new LongAdder(); // logins refused because hashing was behind
+    private final LongAdder rejected = new LongAdder(); // connections turned away with "9"
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --key=value but got " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "spawn":
+                    spawn = Boolean.parseBoolean(value);
+                    break;
+                case "server-args":
+                    serverArgs = value;
+                    break;
+                case "sessions":
+                    sessions = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "rate":
+                    rate = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "mix":
+                    mix = new int[ACTIONS.length];
+                    for (String weight : value.split(",")) {
+                        String[] parts = weight.split(":");
+                        int action = Arrays.asList(ACTIONS).indexOf(parts[0]);
+                        if (action < 0 || parts.length != 2) {
+                            throw new IllegalArgumentException("Unknown action " + weight + ", expected e.g. chat:90,pm:5,list:3,nick:2");
+                        }
+                        mix[action] = Math.max(0, Integer.parseInt(parts[1]));
+                    }
+                    break;
+                case "rooms":
+                    rooms = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "duration":
+                    duration = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "warmup":
+                    warmup = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "report":
+                    report = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "connects":
+                    connects = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "name":
+                    name = value;
+                    break;
+                case "password":
+                    password = value;
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + key);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        Path data = null;
+        Process server = null;
+        if (spawn) {
+            data = Files.createTempDirectory("load");
+            server = startServer(data);
+            Thread.sleep(2000);
+        }
+        names = new AtomicReferenceArray<>(sessions);
+        List<Session> open = new ArrayList<>();
+        try {
+            long begin = System.nanoTime();
+            Semaphore authenticating = new Semaphore(connects);
+            CountDownLatch connected = new CountDownLatch(sessions);
+            ConcurrentLinkedQueue<Session> started = new ConcurrentLinkedQueue<>();
+            for (int i = 0; i < sessions; i++) {
+                int id = i;
+                Thread.ofVirtual().name("connect-" + id).start(() -> {
+                    try {
+                        authenticating.acquire();
+                        try {
+                            for (int attempt = 1; ; attempt++) {
+                                try {
+                                    started.add(new Session(id));
+                                    break;
+                                } catch (Rejected e) {
+                                    rejected.increment();
+                                    if (attempt == 10) {
+                                        throw e;
+                                    }
+                                    Thread.sleep(200L * attempt); // the server is full or overloaded, back off
+                                }
+                            }
+                        } finally {
+                            authenticating.release();
+                        }
+                    } catch (IOException e) {
+                        System.err.println("session " + id + " could not connect: " + e.getMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        connected.countDown();
+                    }
+                });
+            }
+            connected.await();
+            open.addAll(started);
+            System.out.printf("%d of %d sessions connected in %.1f s, %d rooms, %.2f actions/s each, mix %s%n",
+                    open.size(), sessions, (System.nanoTime() - begin) / 1e9, rooms, rate, mixText());
+
+            for (Session session : open) {
+                session.start();
+            }
+            long start = System.nanoTime();
+            measuring = warmup == 0;
+            for (int elapsed = report; elapsed <= duration; elapsed += report) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(report));
+                if (!measuring && elapsed >= warmup) {
+                    measuring = true;
+                    start = System.nanoTime();
+                }
+                System.out.println(String.format("%4ds ", elapsed) + interval.report(report));
+                interval.reset();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            running = false;
+            System.out.println();
+            System.out.printf("Total over %.0f s after a %d s warmup%n", seconds, warmup);
+            System.out.println(total.summary(seconds));
+            System.out.println("logins retried while hashing was behind: " + busy.sum()
+                    + ", connections turned away by admission control: " + rejected.sum());
+        } finally {
+            running = false;
+            for (Session session : open) {
+                session.close();
+            }
+            if (server != null) {
+                server.destroy();
+                server.waitFor(5, TimeUnit.SECONDS);
+                try (Stream<Path> files = Files.walk(data)) {
+                    files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private Process startServer(Path data) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"), "server.Server",
+                "--port=" + port, "--data-dir=" + data, "--hash-iterations=1000", "--reload-dictionary=false",
+                "--max-connections=" + (sessions + 16), "--rate-limit=0", "--ip-rate-limit=0")); // every session is on one address
+        for (String arg : serverArgs.split(" ")) {
+            if (!arg.isEmpty()) {
+                command.add(arg);
+            }
+        }
+        System.out.println("Starting " + String.join(" ", command.subList(3, command.size())));
+        return new ProcessBuilder(command)
+                .redirectOutput(data.resolve("out.txt").toFile())
+                .redirectErrorStream(true)
+                .start();
+    }
+
+    private String mixText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < ACTIONS.length; i++) {
+            text.append(i == 0 ? "" : ",").append(ACTIONS[i]).append(':').append(mix[i]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * record
+     * @description counts an event in the current interval and, after the warmup, the totals
+     */
+    private void record(int what) {
+        interval.count(what);
+        if (measuring) {
+            total.count(what);
+        }
+    }
+
+    private void latency(Latency kind, long nanos) {
+        interval.latency(kind).record(nanos);
+        if (measuring) {
+            total.latency(kind).record(nanos);
+        }
+    }
+
+    /**
+     * @description one simulated user: its socket, a reader thread timing what arrives and a
+     * sender thread acting at random times
+     */
+    private final class Session {
+
+        private final int id;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+        private final Random random;
+        private final ConcurrentLinkedQueue<Long> lists = new ConcurrentLinkedQueue<>(); // when each /list waiting for its reply was sent
+        private String base; // the name before any /nick
+
+        Session(int id) throws IOException, InterruptedException {
+            this.id = id;
+            this.random = new Random(seed * 1_000_003 + id);
+            this.base = name + id;
+            this.socket = new Socket(host, port);
+            this.socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            try {
+                authenticate();
+                await("Users in "); // the roster sent on login, so later ones answer our /list
+                int room = id % rooms;
+                if (room > 0) {
+                    send("/join " + name + "-room" + room);
+                    await("Users in ");
+                }
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            names.set(id, base);
+        }
+
+        /**
+         * authenticate
+         * @description signs up, or logs in if the account exists, waiting out a busy server
+         */
+        private void authenticate() throws IOException, InterruptedException {
+            String code = in.readLine(); // "0", the prompt
+            if ("9".equals(code)) {
+                throw new Rejected();
+            }
+            boolean signUp = true;
+            while (true) {
+                if (!"0".equals(code)) {
+                    throw new IOException("expected a prompt but got " + code);
+                }
+                if (signUp) {
+                    send("0"); // sign up
+                    send(base);
+                    code = in.readLine();
+                    if ("6".equals(code)) { // the account exists, log in to it instead
+                        signUp = false;
+                        code = in.readLine();
+                        continue;
+                    } else if (!"10".equals(code)) {
+                        throw new IOException("sign up of " + base + " failed with " + code);
+                    }
+                } else {
+                    send(base);
+                    code = in.readLine();
+                    if (!"3".equals(code)) {
+                        throw new IOException("login of " + base + " failed with " + code);
+                    }
+                }
+                send(password);
+                code = in.readLine();
+                if ("4".equals(code)) {
+                    return;
+                } else if ("8".equals(code)) { // hashing is behind, try again shortly
+                    busy.increment();
+                    Thread.sleep(50 + random.nextInt(100));
+                    code = in.readLine();
+                } else {
+                    throw new IOException((signUp ? "sign up" : "login") + " of " + base + " failed with " + code);
+                }
+            }
+        }
+
+        private void await(String prefix) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(prefix)) {
+                    return;
+                }
+            }
+            throw new IOException("disconnected");
+        }
+
+        void start() {
+            Thread.ofVirtual().name("read-" + id).start(this::read);
+            if (rate > 0) {
+                Thread.ofVirtual().name("send-" + id).start(this::act);
+            }
+        }
+
+        /**
+         * read
+         * @description times every marked message and /list reply that arrives
+         */
+        private void read() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    long now = System.nanoTime();
+                    int marker = line.lastIndexOf(MARKER);
+                    if (marker >= 0) {
+                        int end = line.indexOf(' ', marker);
+                        try {
+                            long sent = Long.parseLong(line.substring(marker + MARKER.length(), end < 0 ? line.length() : end));
+                            boolean pm = line.startsWith("PM from ");
+                            record(pm ? Stats.PM_DELIVERED : Stats.DELIVERED);
+                            latency(pm ? Latency.PM : Latency.CHAT, now - sent);
+                        } catch (NumberFormatException e) {
+                            // someone else's text that happens to contain the marker
+                        }
+                    } else if (line.startsWith("Users in ")) {
+                        Long sent = lists.poll();
+                        if (sent != null) {
+                            latency(Latency.LIST, now - sent);
+                        }
+                    } else if (line.equals("No such user.") || line.equals("Name already in use.")) {
+                        record(Stats.REFUSED);
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+            if (running) {
+                record(Stats.DISCONNECTED);
+            }
+        }
+
+        /**
+         * act
+         * @description sends the actions of the mix at exponentially distributed intervals
+         */
+        private void act() {
+            int weights = 0;
+            for (int weight : mix) {
+                weights += weight;
+            }
+            try {
+                while (running) {
+                    long pause = (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+                    Thread.sleep(pause / 1_000_000, (int) (pause % 1_000_000));
+                    if (!running || weights == 0) {
+                        break;
+                    }
+                    int pick = random.nextInt(weights);
+                    int action = 0;
+                    while (pick >= mix[action]) {
+                        pick -= mix[action++];
+                    }
+                    switch (action) {
+                        case CHAT:
+                            send("hello from " + base + " " + MARKER + System.nanoTime());
+                            record(Stats.SENT);
+                            break;
+                        case PM:
+                            String to = names.get(random.nextInt(sessions));
+                            send("/pm " + (to == null ? base : to) + " psst " + MARKER + System.nanoTime());
+                            record(Stats.PM_SENT);
+                            break;
+                        case LIST:
+                            lists.add(System.nanoTime());
+                            send("/list");
+                            record(Stats.COMMANDS);
+                            break;
+                        case NICK:
+                            String current = names.get(id);
+                            String next = current.equals(base) ? base + "_" : base;
+                            send("/nick " + next);
+                            names.set(id, next);
+                            record(Stats.COMMANDS);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                // the reader sees the disconnect
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void send(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        void close() {
+            try {
+                send("/quit");
+            } catch (IOException e) {
+                // already gone
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * @description the server turned the connection away before the prompt
+     */
+    private static final class Rejected extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Rejected() {
+            super("turned away by the server");
+        }
+    }
+
+    /**
+     * @description what is timed
+     */
+    private enum Latency {
+        CHAT, // a chat message, from sending to each member receiving it
+        PM, // a private message, from sending to the recipient receiving it
+        LIST // a /list, from sending to its reply
+    }
+
+    /**
+     * @description counts and latencies over some span of the run
+     */
+    private static final class Stats {
+
+        static final int SENT = 0;
+        static final int DELIVERED = 1;
+        static final int PM_SENT = 2;
+        static final int PM_DELIVERED = 3;
+        static final int COMMANDS = 4;
+        static final int REFUSED = 5;
+        static final int DISCONNECTED = 6;
+
+        private final LongAdder[] counts = new LongAdder[7];
+        private final AtomicReference<Histogram[]> latencies = new AtomicReference<>();
+
+        Stats() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+            reset();
+        }
+
+        void count(int what) {
+            counts[what].increment();
+        }
+
+        Histogram latency(Latency kind) {
+            return latencies.get()[kind.ordinal()];
+        }
+
+        void reset() {
+            for (LongAdder count : counts) {
+                count.reset();
+            }
+            Histogram[] fresh = new Histogram[Latency.values().length];
+            for (int i = 0; i < fresh.length; i++) {
+                fresh[i] = new Histogram();
+            }
+            latencies.set(fresh);
+        }
+
+        /**
+         * report
+         * @description one line for an interval
+         */
+        String report(double seconds) {
+            return String.format("sent %8.1f/s  delivered %10.1f/s  pm %6.1f/s  commands %6.1f/s  disconnects %d  chat %s",
+                    counts[SENT].sum() / seconds, counts[DELIVERED].sum() / seconds, counts[PM_DELIVERED].sum() / seconds,
+                    counts[COMMANDS].sum() / seconds, counts[DISCONNECTED].sum(), latency(Latency.CHAT).percentiles());
+        }
+
+        /**
+         * summary
+         * @description the totals at the end of a run
+         */
+        String summary(double seconds) {
+            long sent = counts[SENT].sum();
+            long delivered = counts[DELIVERED].sum();
+            return String.format("chat: %d sent (%.1f/s), %d delivered (%.1f/s), %.1f deliveries per message%n"
+                            + "pm:   %d sent, %d delivered, %d refused (renamed or /nick taken)%n"
+                            + "commands: %d, disconnects: %d%n"
+                            + "latency chat  %s%n"
+                            + "latency pm    %s%n"
+                            + "latency /list %s",
+                    sent, sent / seconds, delivered, delivered / seconds, delivered / (double) Math.max(1, sent),
+                    counts[PM_SENT].sum(), counts[PM_DELIVERED].sum(), counts[REFUSED].sum(),
+                    counts[COMMANDS].sum(), counts[DISCONNECTED].sum(),
+                    latency(Latency.CHAT).percentiles(), latency(Latency.PM).percentiles(), latency(Latency.LIST).percentiles());
+        }
+    }
+
+    /**
+     * @description latencies in microseconds, exact below 64us and within about 3% above: each
+     * power of two is split into 32 buckets
+     */
+    private static final class Histogram {
+
+        private static final int LINEAR = 64; // values below this have a bucket each
+        private static final int SUB = 32; // buckets per power of two above that
+
+        private final AtomicLongArray counts = new AtomicLongArray(LINEAR + 40 * SUB);
+        private final LongAdder count = new LongAdder();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket;
+            if (micros < LINEAR) {
+                bucket = (int) micros;
+            } else {
+                int shift = 63 - Long.numberOfLeadingZeros(micros) - 5; // keeps the top 6 bits, 1 then the sub-bucket
+                bucket = Math.min(LINEAR + (shift - 1) * SUB + (int) (micros >>> shift) - SUB, counts.length() - 1);
+            }
+            counts.incrementAndGet(bucket);
+            count.increment();
+        }
+
+        /**
+         * upper
+         * @description the largest value a bucket holds
+         */
+        private static long upper(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            int shift = (bucket - LINEAR) / SUB + 1;
+            long sub = (bucket - LINEAR) % SUB + SUB;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        private long percentile(double p, long total) {
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    return upper(i);
+                }
+            }
+            return 0;
+        }
+
+        String percentiles() {
+            long total = count.sum();
+            if (total == 0) {
+                return "n=0";
+            }
+            return String.format("n=%d p50 %s p90 %s p99 %s p99.9 %s max %s", total, millis(percentile(0.5, total)),
+                    millis(percentile(0.9, total)), millis(percentile(0.99, total)), millis(percentile(0.999, total)),
+                    millis(percentile(1, total)));
+        }
+
+        private static String millis(long micros) {
+            return String.format("%.2fms", micros / 1000.0);
+        }
+    }
+
+}
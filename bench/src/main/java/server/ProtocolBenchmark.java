@@ -0,0 +1,105 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description Compares the text protocol with Wire frames: the cost of splitting a stream of
+ * chat messages into lines or frames, and the bytes a large roster and a history replay take
+ * in each, with and without compression.
+ * Run from the project root so src/server/d2.txt can be found.
+ */
+public class ProtocolBenchmark {
+
+    private static final String MESSAGE = "Hello everyone, the quick brown fox jumps over the lazy dog and then we all go home";
+    private static final int MESSAGES = 100_000;
+    private static final int READ_SIZE = 8192; // what one channel read hands the decoder
+
+    public static void main(String[] args) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            text.write((MESSAGE + " " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            Wire.write(frames, Wire.CHAT, MESSAGE + " " + i);
+        }
+        byte[] textBytes = text.toByteArray();
+        byte[] frameBytes = frames.toByteArray();
+        for (int round = 0; round < 5; round++) { // the first rounds warm up
+            long lines = lines(textBytes);
+            long decoded = frames(frameBytes);
+            if (round >= 2) {
+                System.out.printf("parse: lines %6.1f ns/msg, frames %6.1f ns/msg%n",
+                        (double) lines / MESSAGES, (double) decoded / MESSAGES);
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            names.add("user" + i);
+        }
+        StringBuilder roster = new StringBuilder("Users in lobby:\n").append(ClientSession.RULE);
+        for (String name : names) {
+            roster.append('\n').append(name);
+        }
+        roster.append('\n').append(ClientSession.RULE);
+        sizes("roster of 1000", roster.toString(), "Users in lobby:\n" + String.join("\n", names));
+
+        BeeTranslator translator = new BeeTranslator(BeeDictionary.read("src/server/d2.txt"), BeeDictionary.Direction.TO_BEE, true);
+        StringBuilder history = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            history.append("user").append(i % 7).append(": ");
+            translator.translate(MESSAGE + " " + i, history);
+            history.append('\n');
+        }
+        sizes("history of 50", "Recent messages:\n" + ClientSession.RULE + "\n" + history + ClientSession.RULE, history.toString());
+    }
+
+    private static long lines(byte[] bytes) throws IOException {
+        LineFramer framer = new LineFramer();
+        int[] count = new int[1];
+        long start = System.nanoTime();
+        for (int at = 0; at < bytes.length; at += READ_SIZE) {
+            framer.feed(ByteBuffer.wrap(bytes, at, Math.min(READ_SIZE, bytes.length - at)).slice(), line -> count[0]++);
+        }
+        long elapsed = System.nanoTime() - start;
+        check(count[0]);
+        return elapsed;
+    }
+
+    private static long frames(byte[] bytes) throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        int[] count = new int[1];
+        long start = System.nanoTime();
+        for (int at = 0; at < bytes.length; at += READ_SIZE) {
+            decoder.feed(ByteBuffer.wrap(bytes, at, Math.min(READ_SIZE, bytes.length - at)).slice(), frame -> count[0]++);
+        }
+        long elapsed = System.nanoTime() - start;
+        check(count[0]);
+        return elapsed;
+    }
+
+    private static void check(int count) {
+        if (count != MESSAGES) {
+            throw new IllegalStateException("decoded " + count + " of " + MESSAGES);
+        }
+    }
+
+    /**
+     * sizes
+     * @description prints the bytes the same content takes as text lines, as a frame and as
+     * a deflated frame
+     */
+    private static void sizes(String what, String lines, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        int text = lines.getBytes(StandardCharsets.UTF_8).length + 1;
+        int frame = Payload.frame(Wire.ROSTER, bytes, bytes.length, false).length();
+        int deflated = Payload.frame(Wire.ROSTER, bytes, bytes.length, true).length();
+        System.out.printf("%s: text %6d bytes, frame %6d bytes, deflated %6d bytes (%.1fx smaller)%n",
+                what, text, frame, deflated, (double) text / deflated);
+    }
+
+}
@@ -0,0 +1,88 @@
+package client;
+
+import javafx.collections.ObservableListBase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * ChatLog
+ * The lines the chat shows, newest last, kept in a ring of fixed size: once it is full each
+ * new line replaces the oldest. A ListView over it only draws the rows on screen, so memory
+ * and the cost of a new line stay the same however long the session runs.
+ * Only changed on the FX thread, like any list a control shows.
+ */
+class ChatLog extends ObservableListBase<String> {
+
+    private final String[] lines;
+    private int first; //Index of the oldest line in lines
+    private int size;
+
+    ChatLog(int capacity) {
+        lines = new String[capacity];
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return lines[(first + index) % lines.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * append
+     * Adds a batch of lines as one change, dropping as many of the oldest as it takes to fit
+     */
+    void append(List<String> batch) {
+        int from = Math.max(0, batch.size() - lines.length); //A batch bigger than the ring keeps its end
+        int adding = batch.size() - from;
+        if (adding == 0) {
+            return;
+        }
+        int dropping = Math.max(0, size + adding - lines.length);
+        beginChange();
+        if (dropping > 0) {
+            List<String> removed = new ArrayList<>(dropping);
+            for (int i = 0; i < dropping; i++) {
+                removed.add(get(i));
+                lines[(first + i) % lines.length] = null;
+            }
+            first = (first + dropping) % lines.length;
+            size -= dropping;
+            nextRemove(0, removed);
+        }
+        for (int i = from; i < batch.size(); i++) {
+            lines[(first + size) % lines.length] = batch.get(i);
+            size++;
+        }
+        nextAdd(size - adding, size);
+        endChange();
+    }
+
+    /**
+     * replaceAll
+     * Rewrites every line in place, as one change
+     */
+    @Override
+    public void replaceAll(UnaryOperator<String> operator) {
+        if (size == 0) {
+            return;
+        }
+        beginChange();
+        for (int i = 0; i < size; i++) {
+            int at = (first + i) % lines.length;
+            String old = lines[at];
+            lines[at] = operator.apply(old);
+            nextSet(i, old);
+        }
+        endChange();
+    }
+
+}
@@ -1,10 +1,12 @@
 package client;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.control.skin.VirtualFlow;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
@@ -12,10 +14,19 @@ import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 import javafx.scene.text.Text;
 import javafx.stage.Stage;
+import server.BeeDictionary;
+import server.BeeTranslator;
+import server.Wire;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Client
@@ -25,35 +36,73 @@ public class Client extends Application {
 
     //Class variables
     private Stage primaryStage;
-    private BufferedReader reader;
-    private PrintWriter writer;
-    private HashMap<String, String> beeDictionary;
-
-    private Text chatArea;
-    private String chat = "BeeHarmony\u2122";
+    private InputStream in;
+    private OutputStream out;
+    private boolean frames; //The server agreed to the binary protocol
+    private boolean rejected; //The server was too busy to take the connection
+    private final Set<String> roster = new TreeSet<>(); //Users in our room, kept current by PRESENCE frames
+    private String rosterToken; //The roster version we have, null before the first
+    private BeeTranslator translator; //Bee to english
+    private StringBuilder translated = new StringBuilder(); //Reused by translate()
+
+    private static final int CHAT_LINES = 5000; //Lines the chat keeps, older ones are dropped
+    private final ChatLog chat = new ChatLog(CHAT_LINES);
+    private ListView<String> chatList; //Draws only the lines on screen
+    private final ConcurrentLinkedQueue<String> incoming = new ConcurrentLinkedQueue<>(); //Lines read but not shown yet
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(); //A flush is waiting on the FX thread
     private TextField textField;
+    private static final String RULE = "------------------------------------";
 
     private TextField usernameTextField;
     private PasswordField passwordTextField;
 
     @Override
     public void start(Stage primaryStage) throws Exception {
+        connect();
+
+        readDictionary(); //Initiate bee dictionary
+
+        setPrimaryStage(primaryStage);
+        loginWindow(primaryStage); //Open login window
+    }
+
+    /**
+     * connect
+     * Opens the connection to the server, which may turn it away while it is busy
+     */
+    private void connect() {
         System.out.println("Connecting...");
         try {
             Socket socket = new Socket("127.0.0.1", 5000); //Create socket
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream())); //Create input stream
-            writer = new PrintWriter(socket.getOutputStream()); //Create output stream
+            in = new BufferedInputStream(socket.getInputStream()); //Create input stream
+            out = new BufferedOutputStream(socket.getOutputStream()); //Create output stream
+            rejected = false;
+            negotiate();
         } catch (Exception e) {
             System.err.println("Error connecting to server");
             e.printStackTrace();
         }
-        System.out.println("Connected!");
-
-        beeDictionary = new HashMap<>(); //Initiate bee dictionary
-        readDictionary();
+        System.out.println(rejected ? "The server is busy" : "Connected!");
+    }
 
-        setPrimaryStage(primaryStage);
-        loginWindow(primaryStage); //Open login window
+    /**
+     * negotiate
+     * Asks the server for the binary protocol once it has sent its first "0". A server that
+     * doesn't know it answers with something else and then sends "0" again as text
+     */
+    private void negotiate() throws IOException {
+        String greeting = Wire.readLine(in);
+        if ("9".equals(greeting)) { //Server full or overloaded, it has closed the connection
+            rejected = true;
+            return;
+        }
+        if (!"0".equals(greeting)) {
+            return;
+        }
+        out.write((Wire.PROTOCOL + " " + Wire.VERSION + " " + Wire.DEFLATE + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String reply = Wire.readLine(in);
+        frames = reply != null && reply.startsWith(Wire.PROTOCOL + " " + Wire.VERSION);
     }
 
     public void close() {
@@ -73,13 +122,12 @@ public class Client extends Application {
         public void run() {
             while (true) {
                 try {
-                    String msg = reader.readLine(); //Read from input stream
+                    String msg = getMsg(); //Read from input stream
                     if (msg != null) {
                         if (msg.equals("Quitting...")) {
-                            close();
+                            Platform.runLater(Client.this::close);
                         } else {
-                            chat += "\n" + msg; //Add message to chat
-                            chatArea.setText(chat); //Display chat
+                            show(msg); //Add message to chat
                         }
                     } else {
                         break; //Stop reading
@@ -92,6 +140,51 @@ public class Client extends Application {
         }
     }
 
+    /**
+     * show
+     * Queues a message for the chat, called on the reader thread. Only one flush waits on the
+     * FX thread at a time, so everything that arrives while it draws a frame goes in together
+     */
+    private void show(String msg) {
+        for (String line : msg.split("\n", -1)) { //One row per line keeps the rows the same height
+            incoming.add(line);
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::flushIncoming);
+        }
+    }
+
+    /**
+     * flushIncoming
+     * Moves the queued lines into the chat in one change, following the end if it was showing
+     */
+    private void flushIncoming() {
+        flushScheduled.set(false); //Lines queued from here on need another flush
+        List<String> batch = new ArrayList<>();
+        String line;
+        while ((line = incoming.poll()) != null) {
+            batch.add(line);
+        }
+        boolean following = showingEnd();
+        chat.append(batch);
+        if (following && chatList != null) {
+            chatList.scrollTo(chat.size() - 1);
+        }
+    }
+
+    /**
+     * showingEnd
+     * True if the newest line is on screen, so new ones should scroll into view
+     */
+    private boolean showingEnd() {
+        if (chatList == null || chat.isEmpty()) {
+            return true;
+        }
+        VirtualFlow<?> flow = (VirtualFlow<?>) chatList.lookup(".virtual-flow");
+        IndexedCell<?> last = flow == null ? null : flow.getLastVisibleCell();
+        return last == null || last.getIndex() >= chat.size() - 1;
+    }
+
     /**
      * Kevin
      * getMsg
@@ -100,11 +193,14 @@ public class Client extends Application {
      */
     private String getMsg() {
         try {
-            while (true) {
-                if (reader.ready()) { //Read from input stream
-                    return reader.readLine();
-                }
+            if (!frames) {
+                return Wire.readLine(in);
             }
+            Wire.Frame frame;
+            while ((frame = Wire.read(in, Integer.MAX_VALUE, true)) != null && frame.opcode == Wire.PRESENCE) {
+                applyPresence(frame.text()); //Roster changes aren't shown in the chat
+            }
+            return frame == null ? null : display(frame);
         } catch (Exception e) {
             System.err.println("Error receiving message");
             e.printStackTrace();
@@ -112,14 +208,104 @@ public class Client extends Application {
         return null;
     }
 
+    /**
+     * applyPresence
+     * Applies roster changes to our copy of the roster. A batch that is no newer than what we
+     * have is skipped
+     */
+    private synchronized void applyPresence(String deltas) {
+        String[] lines = deltas.split("\n");
+        if (!newer(lines[0])) {
+            return;
+        }
+        rosterToken = lines[0];
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.equals("=")) { //A whole roster follows
+                roster.clear();
+            } else if (line.startsWith("+")) {
+                roster.add(line.substring(1));
+            } else if (line.startsWith("-")) {
+                roster.remove(line.substring(1));
+            } else if (line.startsWith("~")) {
+                int space = line.indexOf(' ');
+                roster.remove(line.substring(1, space));
+                roster.add(line.substring(space + 1));
+            }
+        }
+    }
+
+    /**
+     * newer
+     * Tokens are "room epoch version"; one from another room or epoch always replaces ours
+     */
+    private boolean newer(String token) {
+        if (rosterToken == null) {
+            return true;
+        }
+        String[] ours = rosterToken.split(" ");
+        String[] theirs = token.split(" ");
+        if (!ours[0].equals(theirs[0]) || !ours[1].equals(theirs[1])) {
+            return true;
+        }
+        return Long.parseLong(theirs[2]) > Long.parseLong(ours[2]);
+    }
+
+    /**
+     * requestRoster
+     * Asks for the changes since the roster version we have, or the whole roster
+     */
+    private void requestRoster() throws IOException {
+        if (frames) {
+            write(Wire.COMMAND, "roster" + (rosterToken != null ? " " + rosterToken : ""));
+        }
+    }
+
+    /**
+     * display
+     * Turns a frame into the text the chat shows, laid out as the text protocol would
+     */
+    private String display(Wire.Frame frame) {
+        String text = frame.text();
+        switch (frame.opcode) {
+            case Wire.PM:
+                int split = text.indexOf('\n');
+                return "PM from " + text.substring(0, split) + ": " + text.substring(split + 1);
+            case Wire.ROSTER:
+                int heading = text.indexOf('\n');
+                if (heading < 0) {
+                    return text + "\n" + RULE + "\n" + RULE;
+                }
+                return text.substring(0, heading) + "\n" + RULE + text.substring(heading) + "\n" + RULE;
+            case Wire.HISTORY:
+                return "Recent messages:\n" + RULE + "\n" + text + RULE;
+            default:
+                return text;
+        }
+    }
+
+    /**
+     * write
+     * Sends an authentication step, a chat line or a command
+     */
+    private void write(int opcode, String msg) throws IOException {
+        if (!frames) {
+            out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+        } else if (opcode == Wire.CHAT && msg.startsWith("/")) {
+            Wire.write(out, Wire.COMMAND, msg.substring(1));
+        } else {
+            Wire.write(out, opcode, msg);
+        }
+        out.flush();
+    }
+
     private void send() {
         try {
             String msg = textField.getText(); //Get message
             if (msg.equals("")){
                 textField.setText(""); //Clear text field
             } else {
-                writer.println(msg); //Write message
-                writer.flush();
+                write(Wire.CHAT, msg); //Write message
                 textField.setText(""); //Clear text field
             }
         } catch (Exception e) {
@@ -129,19 +315,11 @@ public class Client extends Application {
     }
 
     private void translate() {
-        String chat = chatArea.getText(); //Get chat
-        String newChat = "";
-        for (String word : chat.split(" ")) { //Divide into words
-            //Construct translated chat
-            if (beeDictionary.containsKey(word)) {
-                newChat += beeDictionary.get(word);
-            } else {
-                newChat += word;
-            }
-            newChat += " ";
-        }
-        setChat(newChat);
-        chatArea.setText(newChat);
+        chat.replaceAll(line -> { //Only the lines kept, so the cost is bounded too
+            translated.setLength(0);
+            translator.translate(line, translated); //Translate word by word
+            return translated.toString();
+        });
     }
 
     /**
@@ -151,21 +329,13 @@ public class Client extends Application {
      */
     private void readDictionary() {
         try {
-            BufferedReader in = new BufferedReader(new FileReader(new File("src/server/d2.txt")));
-            while (in.ready()) {
-                String[] curr = in.readLine().split(":");
-                this.beeDictionary.put(curr[1], curr[0]);
-            }
-            in.close();
+            translator = new BeeTranslator(BeeDictionary.open("src/server/d2.txt"), BeeDictionary.Direction.TO_ENGLISH, false);
         } catch (IOException e) {
             System.err.println("IO Error");
+            translator = new BeeTranslator(BeeDictionary.empty(), BeeDictionary.Direction.TO_ENGLISH, false);
         }
     }
 
-    private void setChat(String newChat) {
-        chat = newChat;
-    }
-
     private void loginWindow(Stage primaryStage) {
         GridPane grid = new GridPane();
         grid.setAlignment(Pos.CENTER);
@@ -207,26 +377,29 @@ public class Client extends Application {
     }
 
     private void login(Stage primaryStage) {
+        if (rejected) {
+            connect(); //Try again
+            if (rejected) {
+                busyAlert();
+                return;
+            }
+        }
         try {
             String msg = getMsg(); //Get message
             if (msg != null) {
                 if (msg.equals("0")) { //Start authentication
                     String username = usernameTextField.getText(); //Get username
-                    writer.println(username); //Write username
-                    writer.flush();
+                    write(Wire.AUTH, username); //Write username
                     msg = getMsg(); //Get message
                     switch (msg) {
-                        case "1": //Username contains spaces
+                        case "1": //Username contains spaces or is too long
                             Alert spaceAlert = new Alert(Alert.AlertType.ERROR);
                             spaceAlert.setHeaderText("Username Error");
-                            spaceAlert.setContentText("Your username cannot contain spaces!");
+                            spaceAlert.setContentText("Your username cannot contain spaces or be that long!");
                             spaceAlert.showAndWait();
                             break;
                         case "2": //User already connected
-                            Alert connectAlert = new Alert(Alert.AlertType.ERROR);
-                            connectAlert.setHeaderText("Connection Error");
-                            connectAlert.setContentText("That user is already connected!");
-                            connectAlert.showAndWait();
+                            connectedAlert();
                             break;
                         case "5": //User does not exist
                             Alert existError = new Alert(Alert.AlertType.ERROR);
@@ -236,17 +409,21 @@ public class Client extends Application {
                             break;
                         case "3": //Enter password
                             String password = passwordTextField.getText(); //Get password
-                            writer.println(password); //Write password
-                            writer.flush();
+                            write(Wire.AUTH, password); //Write password
                             msg = getMsg(); //Get message
                             if (msg.equals("4")) { //Authenticated
                                 chatRoomWindow(primaryStage);
+                                requestRoster();
                                 new Thread(new Reader()).start(); //Start reader thread
+                            } else if (msg.equals("2")) { //Connected elsewhere while checking
+                                connectedAlert();
                             } else if (msg.equals("7")) { //Incorrect password
                                 Alert passError = new Alert(Alert.AlertType.ERROR);
                                 passError.setHeaderText("Password Error");
                                 passError.setContentText("Incorrect password!");
                                 passError.showAndWait();
+                            } else if (msg.equals("8")) { //Server busy
+                                busyAlert();
                             }
                             break;
                     }
@@ -259,21 +436,26 @@ public class Client extends Application {
     }
 
     private void signUp(Stage primaryStage) {
+        if (rejected) {
+            connect(); //Try again
+            if (rejected) {
+                busyAlert();
+                return;
+            }
+        }
         try {
             String msg = getMsg(); //Get message
             if (msg != null) {
                 if (msg.equals("0")) { //Start authentication
-                    writer.println("0"); //Write 0
-                    writer.flush();
+                    write(Wire.AUTH, "0"); //Write 0
                     String username = usernameTextField.getText(); //Get username
-                    writer.println(username); //Write username
-                    writer.flush();
+                    write(Wire.AUTH, username); //Write username
                     msg = getMsg(); //Get message
                     switch (msg) {
-                        case "1": //Username contains spaces
+                        case "1": //Username contains spaces or is too long
                             Alert spaceAlert = new Alert(Alert.AlertType.ERROR);
                             spaceAlert.setHeaderText("Username Error");
-                            spaceAlert.setContentText("Your username cannot contain spaces!");
+                            spaceAlert.setContentText("Your username cannot contain spaces or be that long!");
                             spaceAlert.showAndWait();
                             break;
                         case "6": //User already exists
@@ -284,13 +466,17 @@ public class Client extends Application {
                             break;
                         case "10": //Enter password for sign up
                             String password = passwordTextField.getText(); //Get password
-                            writer.println(password); //Write password
-                            writer.flush();
+                            write(Wire.AUTH, password); //Write password
                             msg = getMsg(); //Get message
                             System.out.println(msg);
                             if (msg.equals("4")) { // Enter password
                                 chatRoomWindow(primaryStage); //Open chat window
+                                requestRoster();
                                 new Thread(new Reader()).start(); //Start reader thread
+                            } else if (msg.equals("2")) { //Account made, but the name connected meanwhile
+                                connectedAlert();
+                            } else if (msg.equals("8")) { //Server busy
+                                busyAlert();
                             }
                             break;
                     }
@@ -302,17 +488,30 @@ public class Client extends Application {
         }
     }
 
+    private void connectedAlert() {
+        Alert connectAlert = new Alert(Alert.AlertType.ERROR);
+        connectAlert.setHeaderText("Connection Error");
+        connectAlert.setContentText("That user is already connected!");
+        connectAlert.showAndWait();
+    }
+
+    private void busyAlert() {
+        Alert busyAlert = new Alert(Alert.AlertType.ERROR);
+        busyAlert.setHeaderText("Server Busy");
+        busyAlert.setContentText("The server is busy, try again in a moment.");
+        busyAlert.showAndWait();
+    }
+
     private void chatRoomWindow(Stage primaryStage) {
         BorderPane pane = new BorderPane();
         pane.setPadding(new Insets(1, 1, 1, 1));
 
-        ScrollPane scrollPane = new ScrollPane();
-        chatArea = new Text(chat);
-        scrollPane.setFitToWidth(true);
-        scrollPane.setContent(chatArea);
-        scrollPane.setVbarPolicy(ScrollPane.ScrollBarPolicy.ALWAYS);
-        scrollPane.setHbarPolicy(ScrollPane.ScrollBarPolicy.ALWAYS);
-        pane.setCenter(scrollPane);
+        if (chat.isEmpty()) {
+            chat.append(List.of("BeeHarmony\u2122"));
+        }
+        chatList = new ListView<>(chat);
+        chatList.setFocusTraversable(false);
+        pane.setCenter(chatList);
 
         textField = new TextField();
         textField.setPrefWidth(290);
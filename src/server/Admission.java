@@ -0,0 +1,70 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * @description Decides whether the server can take another connection. Once a second it
+ * samples the process's CPU load and the payloads queued for clients; while either is over its
+ * threshold new connections are turned away with code "9" rather than left to slow everyone
+ * already connected. The accept loop only reads the last sample, so the check costs nothing.
+ */
+class Admission {
+
+    private final double maxCpu; // share of every core, 0 doesn't check
+    private final long maxQueued; // payloads, 0 doesn't check
+    private final LongSupplier queued;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final ScheduledExecutorService sampler;
+
+    private volatile double cpu;
+    private volatile long backlog;
+
+    Admission(ServerConfig config, LongSupplier queued) {
+        this.maxCpu = config.admitCpu;
+        this.maxQueued = config.admitQueued;
+        this.queued = queued;
+        this.sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        this.sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+    }
+
+    void shutdown() {
+        this.sampler.shutdownNow();
+    }
+
+    private void sample() {
+        if (this.maxCpu > 0 && this.os instanceof com.sun.management.OperatingSystemMXBean) {
+            this.cpu = ((com.sun.management.OperatingSystemMXBean) this.os).getProcessCpuLoad(); // negative if unknown
+        }
+        if (this.maxQueued > 0) {
+            this.backlog = this.queued.getAsLong();
+        }
+    }
+
+    /**
+     * overloaded
+     * @description why a new connection should be turned away
+     * @return "cpu" or "queues", or null if it can be taken
+     */
+    String overloaded() {
+        if (this.maxCpu > 0 && this.cpu >= this.maxCpu) {
+            return "cpu";
+        }
+        if (this.maxQueued > 0 && this.backlog >= this.maxQueued) {
+            return "queues";
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,363 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+/**
+ * @description An immutable, two-way word dictionary that can be searched by a range of
+ * characters, so a translator never has to cut a message into substrings to look words up.
+ * Every word is packed into one char array: entry i is its english word followed by its bee
+ * word. Two open-addressing tables of entry numbers index the english and the bee side, so
+ * one structure serves both directions without a String or map entry per word.
+ * A later entry for the same word replaces an earlier one, just as HashMap.put() did.
+ *
+ * The same layout is written to a binary file by compile(), and map() serves lookups
+ * straight from a memory-mapped copy of it. Nothing is parsed at startup, and processes on
+ * the same host share the pages through the OS page cache.
+ */
+public final class BeeDictionary {
+
+    /**
+     * @description which side of the dictionary a lookup starts from
+     */
+    public enum Direction {
+        TO_BEE, // look up english, answer in bee
+        TO_ENGLISH // look up bee, answer in english
+    }
+
+    private static final int MAGIC = 0x42454544; // "BEED"
+    private static final int VERSION = 1;
+    private static final int HEADER = 6 * Integer.BYTES; // magic, version, entries, data length, capacity, size
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final CharBuffer data; // english then bee for every entry, back to back
+    private final IntBuffer start; // where each entry begins in data, plus one past the last
+    private final CharBuffer englishLength; // length of each entry's english word
+    private final IntBuffer english; // english word hash -> entry + 1, 0 when empty
+    private final IntBuffer bee; // bee word hash -> entry + 1, 0 when empty
+    private final int entries;
+    private final int mask;
+    private final int size;
+
+    private BeeDictionary(CharBuffer data, IntBuffer start, CharBuffer englishLength,
+                          IntBuffer english, IntBuffer bee, int entries, int size) {
+        this.data = data;
+        this.start = start;
+        this.englishLength = englishLength;
+        this.english = english;
+        this.bee = bee;
+        this.entries = entries;
+        this.mask = english.capacity() - 1;
+        this.size = size;
+    }
+
+    /**
+     * read
+     * @description parses a dictionary file of "english:bee" lines into the heap
+     */
+    public static BeeDictionary read(String file) throws IOException {
+        char[] data = new char[1 << 16];
+        int[] start = new int[1024];
+        char[] englishLength = new char[1024];
+        int entries = 0;
+        int used = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon < 0 || colon > Character.MAX_VALUE) {
+                    continue;
+                }
+                int end = line.indexOf(':', colon + 1);
+                if (end < 0) {
+                    end = line.length();
+                }
+                int length = end - 1; // both words, without the colon
+                if (entries + 1 >= start.length) {
+                    start = Arrays.copyOf(start, start.length * 2);
+                    englishLength = Arrays.copyOf(englishLength, englishLength.length * 2);
+                }
+                if (used + length > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, used + length));
+                }
+                line.getChars(0, colon, data, used);
+                line.getChars(colon + 1, end, data, used + colon);
+                start[entries] = used;
+                englishLength[entries] = (char) colon;
+                entries++;
+                used += length;
+            }
+        }
+        start[entries] = used;
+        return build(Arrays.copyOf(data, used), Arrays.copyOf(start, entries + 1),
+                Arrays.copyOf(englishLength, entries), entries);
+    }
+
+    /**
+     * empty
+     * @description a dictionary with no words, for when the file can't be read
+     */
+    public static BeeDictionary empty() {
+        return build(new char[0], new int[1], new char[0], 0);
+    }
+
+    /**
+     * open
+     * @description maps the compiled form of a dictionary text file, compiling it first
+     * if the binary next to it (d2.txt -> d2.bin) is missing or older than the text
+     */
+    public static BeeDictionary open(String file) throws IOException {
+        Path text = Paths.get(file);
+        Path binary = binaryFor(text);
+        if (!Files.exists(binary)
+                || Files.getLastModifiedTime(binary).compareTo(Files.getLastModifiedTime(text)) < 0) {
+            compile(file, binary.toString());
+        }
+        try {
+            return map(binary.toString());
+        } catch (IOException e) { // written by an older version, or damaged
+            compile(file, binary.toString());
+            return map(binary.toString());
+        }
+    }
+
+    /**
+     * binaryFor
+     * @description where open() keeps the compiled form of a dictionary text file
+     */
+    static Path binaryFor(Path text) {
+        String name = text.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return text.resolveSibling((dot < 0 ? name : name.substring(0, dot)) + ".bin");
+    }
+
+    /**
+     * compile
+     * @description parses a dictionary text file and writes its binary form. The file is
+     * written next to the target and moved into place, so readers never see half of it
+     */
+    public static void compile(String file, String binary) throws IOException {
+        BeeDictionary dictionary = read(file);
+        Path target = Paths.get(binary).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ORDER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(dictionary.entries).putInt(dictionary.data.capacity())
+                    .putInt(dictionary.english.capacity()).putInt(dictionary.size).flip();
+            writeFully(out, header);
+            writeFully(out, ints(dictionary.start));
+            writeFully(out, ints(dictionary.english));
+            writeFully(out, ints(dictionary.bee));
+            writeFully(out, chars(dictionary.data));
+            writeFully(out, chars(dictionary.englishLength));
+            out.force(true);
+        }
+        try { // other users' processes may map it too
+            Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system, keep the default permissions
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * map
+     * @description memory maps a file written by compile(); lookups read it in place
+     */
+    public static BeeDictionary map(String binary) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(binary), StandardOpenOption.READ)) {
+            MappedByteBuffer file = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            file.order(ORDER);
+            if (file.capacity() < HEADER || file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+                throw new IOException(binary + " is not a compiled dictionary");
+            }
+            int entries = file.getInt(8);
+            int dataLength = file.getInt(12);
+            int capacity = file.getInt(16);
+            int size = file.getInt(20);
+            int offset = HEADER;
+            long expected = HEADER + 4L * (entries + 1) + 8L * capacity + 2L * dataLength + 2L * entries;
+            if (file.capacity() != expected || Integer.bitCount(capacity) != 1) {
+                throw new IOException(binary + " is truncated or damaged");
+            }
+            IntBuffer start = file.slice(offset, 4 * (entries + 1)).order(ORDER).asIntBuffer();
+            offset += 4 * (entries + 1);
+            IntBuffer english = file.slice(offset, 4 * capacity).order(ORDER).asIntBuffer();
+            offset += 4 * capacity;
+            IntBuffer bee = file.slice(offset, 4 * capacity).order(ORDER).asIntBuffer();
+            offset += 4 * capacity;
+            CharBuffer data = file.slice(offset, 2 * dataLength).order(ORDER).asCharBuffer();
+            offset += 2 * dataLength;
+            CharBuffer englishLength = file.slice(offset, 2 * entries).order(ORDER).asCharBuffer();
+            return new BeeDictionary(data, start, englishLength, english, bee, entries, size);
+        }
+    }
+
+    /**
+     * main
+     * @description compiles a dictionary at build time. Usage: BeeDictionary d2.txt [d2.bin]
+     */
+    public static void main(String[] args) throws IOException {
+        String binary = args.length > 1 ? args[1] : binaryFor(Paths.get(args[0])).toString();
+        long begin = System.nanoTime();
+        compile(args[0], binary);
+        System.out.println("Compiled " + args[0] + " to " + binary + " in "
+                + (System.nanoTime() - begin) / 1_000_000 + " ms (" + new File(binary).length() + " bytes)");
+    }
+
+    private static BeeDictionary build(char[] data, int[] start, char[] englishLength, int entries) {
+        int capacity = Integer.highestOneBit(Math.max(entries, 2) * 2 - 1) << 1; // at most half full
+        int[] english = new int[capacity];
+        int[] bee = new int[capacity];
+        int words = 0;
+        for (int i = 0; i < entries; i++) {
+            if (index(english, i, true, data, start, englishLength)) {
+                words++;
+            }
+            index(bee, i, false, data, start, englishLength);
+        }
+        return new BeeDictionary(CharBuffer.wrap(data), IntBuffer.wrap(start), CharBuffer.wrap(englishLength),
+                IntBuffer.wrap(english), IntBuffer.wrap(bee), entries, words);
+    }
+
+    /**
+     * index
+     * @description puts one side of an entry into that side's table while building
+     * @return true if the word was not there yet
+     */
+    private static boolean index(int[] table, int entry, boolean englishSide,
+                                 char[] data, int[] start, char[] englishLength) {
+        int mask = table.length - 1;
+        int from = englishSide ? start[entry] : start[entry] + englishLength[entry];
+        int to = englishSide ? start[entry] + englishLength[entry] : start[entry + 1];
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + data[i];
+        }
+        int slot = mix(hash) & mask;
+        while (table[slot] != 0) {
+            int other = table[slot] - 1;
+            int otherFrom = englishSide ? start[other] : start[other] + englishLength[other];
+            int otherTo = englishSide ? start[other] + englishLength[other] : start[other + 1];
+            if (Arrays.equals(data, from, to, data, otherFrom, otherTo)) {
+                table[slot] = entry + 1;
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry + 1;
+        return true;
+    }
+
+    /**
+     * find
+     * @description looks up the word text[start, end)
+     * @return the entry, or -1 if the word is not in the dictionary
+     */
+    public int find(Direction direction, CharSequence text, int start, int end) {
+        return find(direction, text, start, end, false);
+    }
+
+    /**
+     * findLowerCase
+     * @description looks up the lower case form of the word text[start, end), without
+     * making a lower case copy of it
+     * @return the entry, or -1 if the word is not in the dictionary
+     */
+    public int findLowerCase(Direction direction, CharSequence text, int start, int end) {
+        return find(direction, text, start, end, true);
+    }
+
+    private int find(Direction direction, CharSequence text, int start, int end, boolean lowerCase) {
+        boolean englishSide = direction == Direction.TO_BEE;
+        IntBuffer table = englishSide ? this.english : this.bee;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            hash = 31 * hash + (lowerCase ? Character.toLowerCase(c) : c);
+        }
+        for (int slot = mix(hash) & mask; table.get(slot) != 0; slot = (slot + 1) & mask) {
+            int entry = table.get(slot) - 1;
+            if (matches(from(entry, englishSide), to(entry, englishSide), text, start, end, lowerCase)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * appendTranslation
+     * @description appends the other side of an entry found by find()
+     */
+    public void appendTranslation(Direction direction, int entry, StringBuilder out) {
+        boolean englishSide = direction != Direction.TO_BEE; // the answer is on the far side
+        out.append(data, from(entry, englishSide), to(entry, englishSide));
+    }
+
+    /**
+     * size
+     * @description the number of distinct english words
+     */
+    public int size() {
+        return size;
+    }
+
+    private int from(int entry, boolean englishSide) {
+        return englishSide ? start.get(entry) : start.get(entry) + englishLength.get(entry);
+    }
+
+    private int to(int entry, boolean englishSide) {
+        return englishSide ? start.get(entry) + englishLength.get(entry) : start.get(entry + 1);
+    }
+
+    private boolean matches(int from, int to, CharSequence text, int start, int end, boolean lowerCase) {
+        if (to - from != end - start) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(start + i - from);
+            if (data.get(i) != (lowerCase ? Character.toLowerCase(c) : c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer ints(IntBuffer values) {
+        ByteBuffer bytes = ByteBuffer.allocate(values.capacity() * Integer.BYTES).order(ORDER);
+        bytes.asIntBuffer().put(values.duplicate().clear());
+        return bytes;
+    }
+
+    private static ByteBuffer chars(CharBuffer values) {
+        ByteBuffer bytes = ByteBuffer.allocate(values.capacity() * Character.BYTES).order(ORDER);
+        bytes.asCharBuffer().put(values.duplicate().clear());
+        return bytes;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -0,0 +1,66 @@
+package server;
+
+/**
+ * @description Translates text word by word through a BeeDictionary. Words are found by
+ * scanning the input in place and the result is appended to a caller-owned StringBuilder,
+ * so a translation allocates nothing once that builder has grown to size.
+ * Words are split on single spaces exactly like String.split(" ") and each translated word
+ * is followed by a space, as the original translation loops did.
+ */
+public final class BeeTranslator {
+
+    private final BeeDictionary dictionary;
+    private final BeeDictionary.Direction direction;
+    private final boolean lowerCaseFallback; // retry unknown words in lower case
+
+    /**
+     * @param dictionary the words to translate
+     * @param direction which way to translate
+     * @param lowerCaseFallback if a word is missing, also try its lower case form
+     */
+    public BeeTranslator(BeeDictionary dictionary, BeeDictionary.Direction direction, boolean lowerCaseFallback) {
+        this.dictionary = dictionary;
+        this.direction = direction;
+        this.lowerCaseFallback = lowerCaseFallback;
+    }
+
+    public BeeDictionary dictionary() {
+        return dictionary;
+    }
+
+    /**
+     * translate
+     * @description appends the translation of text to out
+     */
+    public void translate(CharSequence text, StringBuilder out) {
+        int end = text.length();
+        if (end == 0) { // "".split(" ") is a single empty word
+            out.append(' ');
+            return;
+        }
+        while (end > 0 && text.charAt(end - 1) == ' ') { // split() drops trailing empty words
+            end--;
+        }
+        int start = 0;
+        for (int i = 0; i <= end && end > 0; i++) {
+            if (i == end || text.charAt(i) == ' ') {
+                word(text, start, i, out);
+                start = i + 1;
+            }
+        }
+    }
+
+    private void word(CharSequence text, int start, int end, StringBuilder out) {
+        int entry = start == end ? -1 : dictionary.find(direction, text, start, end);
+        if (entry < 0 && lowerCaseFallback && start != end) {
+            entry = dictionary.findLowerCase(direction, text, start, end);
+        }
+        if (entry >= 0) {
+            dictionary.appendTranslation(direction, entry, out);
+        } else {
+            out.append(text, start, end);
+        }
+        out.append(' ');
+    }
+
+}
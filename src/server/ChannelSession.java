@@ -0,0 +1,225 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @description A client session over a non-blocking channel. Reads are driven by the IoLoop
+ * the channel is registered with; writes are queued and flushed by that loop, so a write
+ * never blocks the calling thread.
+ */
+class ChannelSession extends ClientSession {
+
+    private static final int MAX_GATHER = 64; // payloads written by one gathering write
+
+    private final SocketChannel channel;
+    private final LineFramer framer = new LineFramer();
+    private final FrameDecoder decoder = new FrameDecoder(); // used once the client switches to frames
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; // payloads being written together
+    private final int lingerMillis;
+
+    private IoLoop loop;
+    private SelectionKey key;
+    private Server.ClientHandler handler;
+    private int gathered; // buffers in gather
+    private int gatherAt; // the first of them with bytes left to send
+    private Payload region; // a file region waiting for, or part way through, transferTo
+    private long regionOffset; // how much of it has been sent
+    private volatile boolean closed;
+
+    ChannelSession(SocketChannel channel, ServerConfig config) {
+        super(config.queueSize, config.overflow);
+        this.channel = channel;
+        this.lingerMillis = config.writeLingerMillis;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * attach
+     * @description binds the session to its loop, called on the loop thread once registered
+     */
+    void attach(IoLoop loop, SelectionKey key, Server.ClientHandler handler) {
+        this.loop = loop;
+        this.key = key;
+        this.handler = handler;
+    }
+
+    /**
+     * wakeWriter
+     * @description asks the loop to flush the outbound queue
+     */
+    void wakeWriter() {
+        scheduleFlush();
+    }
+
+    /**
+     * abort
+     * @description closes the channel on the loop thread without flushing
+     */
+    void abort() {
+        outbound().close();
+        if (this.loop != null) {
+            this.loop.execute(this::closeAndNotify);
+        }
+    }
+
+    /**
+     * disconnect
+     * @description Says goodbye and closes the channel once everything queued has been sent
+     */
+    boolean disconnect() {
+        if (this.closed) {
+            return false;
+        }
+        this.write("Quitting...");
+        outbound().close();
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * scheduleFlush
+     * @description flushes once the loop has handled its current events, or after the linger
+     * time, so lines written in the meantime go out in the same write
+     */
+    private void scheduleFlush() {
+        if (this.loop != null && this.flushScheduled.compareAndSet(false, true)) {
+            if (this.lingerMillis > 0) {
+                this.loop.schedule(this::flush, this.lingerMillis);
+            } else {
+                this.loop.later(this::flush);
+            }
+        }
+    }
+
+    /**
+     * onReadable
+     * @description reads what the channel has and hands complete lines, or frames once the
+     * client has switched to them, to the handler. Runs on the loop thread.
+     * @param buffer the loop's shared read buffer
+     */
+    void onReadable(ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            int n = this.channel.read(buffer);
+            if (n < 0) {
+                closeAndNotify();
+                return;
+            }
+            Metrics.SERVER.bytesIn.add(n);
+            buffer.flip();
+            if (usesFrames()) {
+                this.decoder.feed(buffer, this.handler::onFrame);
+            } else {
+                this.framer.feed(buffer, this.handler::onLine);
+            }
+        } catch (IOException e) {
+            Log.debug("socket.closed", "name", getName(), e);
+            closeAndNotify();
+        }
+    }
+
+    /**
+     * flush
+     * @description writes as much of the outbound queue as the socket accepts, waiting for
+     * OP_WRITE when the socket buffer is full. Lines in memory go out up to MAX_GATHER at a
+     * time in one gathering write; file regions go on their own. Runs on the loop thread.
+     */
+    void flush() {
+        this.flushScheduled.set(false);
+        if (this.closed) {
+            return;
+        }
+        try {
+            while (true) {
+                if (this.gatherAt < this.gathered) {
+                    long n = this.channel.write(this.gather, this.gatherAt, this.gathered - this.gatherAt);
+                    WRITES.wrote(n);
+                    while (this.gatherAt < this.gathered && !this.gather[this.gatherAt].hasRemaining()) {
+                        this.gather[this.gatherAt++] = null;
+                    }
+                    if (this.gatherAt < this.gathered) {
+                        this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } else if (this.region != null) {
+                    long n = this.region.transferTo(this.regionOffset, this.channel);
+                    WRITES.wrote(n);
+                    this.regionOffset += n;
+                    if (this.regionOffset < this.region.length()) {
+                        this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    this.region.release();
+                    this.region = null;
+                } else if (!gatherNext()) {
+                    break;
+                }
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+            if (outbound().isClosed()) { // disconnect() asked to close once everything was sent
+                close();
+            }
+        } catch (IOException e) {
+            Log.debug("socket.closed", "name", getName(), e);
+            closeAndNotify();
+        }
+    }
+
+    /**
+     * gatherNext
+     * @description takes the next run of queued lines, up to MAX_GATHER or the next file region
+     * @return false if nothing is queued
+     */
+    private boolean gatherNext() {
+        this.gathered = 0;
+        this.gatherAt = 0;
+        Payload line;
+        while (this.gathered < MAX_GATHER && (line = outbound().poll()) != null) {
+            WRITES.sent(1);
+            if (line.isRegion()) { // sent after the lines gathered before it
+                this.region = line;
+                this.regionOffset = 0;
+                break;
+            }
+            this.gather[this.gathered++] = line.buffer();
+        }
+        return this.gathered > 0 || this.region != null;
+    }
+
+    private void closeAndNotify() {
+        boolean wasOpen = !this.closed;
+        close();
+        if (wasOpen) {
+            this.handler.onClose();
+        }
+    }
+
+    private void close() {
+        this.closed = true;
+        outbound().close();
+        outbound().clear();
+        Arrays.fill(this.gather, null);
+        this.gathered = 0;
+        this.gatherAt = 0;
+        if (this.region != null) {
+            this.region.release();
+            this.region = null;
+        }
+        this.key.cancel();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            Log.warn("socket.close.failed", "name", getName(), e);
+        }
+    }
+
+}
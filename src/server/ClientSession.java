@@ -1,33 +1,33 @@
 package server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * @author Jonah Shapiro
- * @description This class manages the client sessions
+ * @description This class manages the client sessions. Subclasses provide the transport,
+ * either a blocking socket (SocketSession), read by its handler's thread, or a non-blocking
+ * channel (ChannelSession), read by an IoLoop that hands lines to the handler.
+ * Everything sent goes through the write methods here, which encode it as text lines or as
+ * Wire frames, whichever the client negotiated.
  */
-class ClientSession {
+abstract class ClientSession {
 
-    private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
     private String name;
+    private volatile Room room; // the room the client is in, null before login
+    private volatile boolean frames; // the client speaks Wire frames rather than text lines
+    private boolean compress; // the client accepts deflated frames
 
-    ClientSession(Socket socket) { //initialize the session
-        this.socket = socket;
-        try {
-            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    static final String RULE = "------------------------------------"; // frames lists in the text protocol
+    static final WriteStats WRITES = new WriteStats(); // what every session has written
+    private final OutboundQueue outbound; // lines waiting for this client's writer
 
+    ClientSession(int queueSize, ServerConfig.Overflow overflow) {
+        this.outbound = new OutboundQueue(queueSize, overflow);
     }
 
     /**
@@ -48,56 +48,199 @@ class ClientSession {
         this.name = name;
     }
 
+    Room getRoom() {
+        return room;
+    }
+
+    void setRoom(Room room) {
+        this.room = room;
+    }
+
+    boolean usesFrames() {
+        return frames;
+    }
+
+    boolean compresses() {
+        return frames && compress; // frames is read first so compress is seen as set
+    }
+
+    /**
+     * useFrames
+     * @description switches the connection to Wire frames, after the reply to the client's
+     * request has been queued as text
+     */
+    void useFrames(boolean compress) {
+        this.compress = compress;
+        this.frames = true;
+    }
+
     /**
      * write
      * @author Jonah Shapiro
-     * @description Sends text to the client
+     * @description Sends text to the client. Never blocks: the line is queued for the writer
      */
-    void write(String msg){
-        this.writer.println(msg);
-        this.writer.flush();
+    void write(String msg) {
+        enqueue(frames ? Payload.frame(Wire.INFO, msg) : Payload.line(msg));
     }
 
+    /**
+     * writeAuth
+     * @description sends an authentication code, such as "0" to ask for a name
+     */
+    void writeAuth(String code) {
+        enqueue(frames ? Payload.frame(Wire.AUTH, code) : Payload.line(code));
+    }
 
+    /**
+     * writePrivate
+     * @description sends a private message
+     */
+    void writePrivate(String from, String text) {
+        enqueue(frames ? Payload.frame(Wire.PM, from + "\n" + text) : Payload.line("PM from " + from + ": " + text));
+    }
 
     /**
-     * read
-     * @author Jonah Shapiro
-     * @description Reads data from the client
-     * @return null if socket closed, else the data
-     */
-    String read(){
-        String line = null;
-        try {
-            line = this.reader.readLine();
-        }catch (SocketException e) {
-            System.out.println("Socket disconnected");
-        } catch (IOException e) {
-            System.out.println("IO Error");
+     * writeRoster
+     * @description sends a heading and a list of names, as lines between rules or as one
+     * ROSTER frame, deflated if it is large. Either way it is a single payload, however many
+     * names there are
+     */
+    void writeRoster(String heading, Collection<String> names) {
+        StringBuilder roster = new StringBuilder(heading);
+        if (!frames) {
+            roster.append('\n').append(RULE);
+            for (String name : names) {
+                roster.append('\n').append(name);
+            }
+            enqueue(Payload.line(roster.append('\n').append(RULE)));
+            return;
         }
-        return line;
+        for (String name : names) {
+            roster.append('\n').append(name);
+        }
+        byte[] bytes = roster.toString().getBytes(StandardCharsets.UTF_8);
+        enqueue(Payload.frame(Wire.ROSTER, bytes, bytes.length, compress));
     }
 
     /**
-     * disconnect
-     * @author Jonah Shapiro
-     * @description Gracefully shuts down the client
+     * writeHistory
+     * @description sends lines replayed from the history. Uncompressed, the lines go out as
+     * they are stored, behind a frame header when the client uses frames, queued as one group
+     * so the overflow policy can't drop part of the frame; compressed, they are read and
+     * deflated into one frame
+     */
+    void writeHistory(List<Payload> lines) {
+        if (!frames) {
+            write("Recent messages:");
+            write(RULE);
+            for (Payload line : lines) {
+                enqueue(line);
+            }
+            write(RULE);
+            return;
+        }
+        int total = 0;
+        for (Payload line : lines) {
+            total += line.length();
+        }
+        if (compress && total >= Wire.MIN_COMPRESS) {
+            ByteBuffer bytes = ByteBuffer.allocate(total);
+            try {
+                for (Payload line : lines) {
+                    line.readTo(bytes);
+                }
+                enqueue(Payload.frame(Wire.HISTORY, bytes.array(), total, true));
+                for (Payload line : lines) {
+                    line.release();
+                }
+                return;
+            } catch (IOException e) {
+                Log.warn("history.deflate.failed", e); // send it uncompressed instead
+            }
+        }
+        List<Payload> frame = new ArrayList<>(lines.size() + 1);
+        frame.add(Payload.header(Wire.HISTORY, total));
+        frame.addAll(lines);
+        enqueue(Payload.group(frame));
+    }
+
+    /**
+     * deliverPresence
+     * @description queues a batch of roster changes shared with other sessions. Only clients
+     * using frames get them
+     */
+    void deliverPresence(Payload plain, Payload deflated) {
+        if (frames) {
+            enqueue(compress && deflated != null ? deflated : plain);
+        }
+    }
+
+    /**
+     * writePresence
+     * @description sends roster changes, or a whole roster, to this client alone
+     */
+    void writePresence(String deltas) {
+        byte[] bytes = deltas.getBytes(StandardCharsets.UTF_8);
+        enqueue(Payload.frame(Wire.PRESENCE, bytes, bytes.length, compress));
+    }
+
+    /**
+     * deliver
+     * @description queues a chat line shared with other sessions, in the client's protocol
+     */
+    void deliver(Payload line) {
+        enqueue(frames ? line.asChatFrame() : line);
+    }
+
+    /**
+     * enqueue
+     * @description queues an encoded line, which may be shared with other sessions, dropping the client if it can't keep up and the
+     * overflow policy says so
      */
-    boolean disconnect(){
-        this.write("Quitting...");
-        try {
-            this.reader.close();
-            this.writer.flush();
-            this.writer.close();
-            this.socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+    void enqueue(Payload line) {
+        switch (this.outbound.offer(line)) {
+            case QUEUED:
+            case DROPPED: // DROP_OLDEST made room, so there is still something to write
+                wakeWriter();
+                break;
+            case OVERFLOW:
+                Log.warn("session.overflow", "name", this.name);
+                abort();
+                break;
+            default:
+                break;
         }
-        return true;
     }
 
+    OutboundQueue outbound() {
+        return outbound;
+    }
+
+    /**
+     * queueDepth
+     * @description lines queued for this client but not yet written
+     */
+    int queueDepth() {
+        return outbound.size();
+    }
 
+    /**
+     * wakeWriter
+     * @description tells the session's writer that lines are waiting
+     */
+    abstract void wakeWriter();
 
+    /**
+     * abort
+     * @description drops the connection at once without flushing what is queued
+     */
+    abstract void abort();
+
+    /**
+     * disconnect
+     * @author Jonah Shapiro
+     * @description Gracefully shuts down the client
+     */
+    abstract boolean disconnect();
 
 }
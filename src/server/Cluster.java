@@ -0,0 +1,496 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @description Links this server to the other nodes of a cluster, so users on any node chat
+ * as if they were on one. Every node connects to every peer over plain TCP and sends it the
+ * room messages, broadcasts, private messages, presence changes and account changes that
+ * start here; what arrives from peers is delivered locally and never sent on.
+ *
+ * Frames are lines of tab-separated fields, the last of which may hold anything but a
+ * newline. Each peer has a bounded queue of frames and a thread that writes everything
+ * queued in one go with a single flush, so busy links send large batches. A link that is down
+ * drops its frames; when it comes back it starts with this node's full roster, which replaces
+ * whatever the peer knew about us.
+ *
+ * With no cluster port and no peers the cluster is empty and every call is cheap.
+ */
+class Cluster {
+
+    private static final int MAX_BATCH = 1024; // frames written per flush
+    private static final long RETRY_MILLIS = 1000; // wait between attempts to reach a peer
+
+    private final ServerConfig config;
+    private final String node;
+    private final SessionRegistry clients;
+    private final RoomRegistry rooms;
+    private final UserStore users;
+    private final List<Peer> peers = new ArrayList<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Presence> remote = new ConcurrentHashMap<>(); // users on other nodes by name
+    private ServerSocket listener;
+    private volatile boolean running;
+
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+
+    /**
+     * @description where a user on another node is
+     */
+    private static final class Presence {
+        final String node;
+        final String room;
+
+        Presence(String node, String room) {
+            this.node = node;
+            this.room = room;
+        }
+    }
+
+    Cluster(ServerConfig config, SessionRegistry clients, RoomRegistry rooms, UserStore users) {
+        this.config = config;
+        this.node = config.node != null ? config.node : "localhost:" + config.clusterPort;
+        this.clients = clients;
+        this.rooms = rooms;
+        this.users = users;
+    }
+
+    /**
+     * start
+     * @description listens for peers and starts connecting to them
+     */
+    void start() throws IOException {
+        this.running = true;
+        if (config.clusterPort > 0) {
+            this.listener = new ServerSocket();
+            this.listener.bind(new InetSocketAddress(config.clusterPort));
+            daemon(this::accept, "cluster-accept").start();
+            Log.info("cluster.listening", "node", node, "port", config.clusterPort);
+        }
+        for (String address : config.peers) {
+            Peer peer = new Peer(address);
+            this.peers.add(peer);
+            daemon(peer, "cluster-peer-" + address).start();
+        }
+    }
+
+    // what starts here and goes to every peer
+
+    /**
+     * publish
+     * @description relays a line sent to a room on this node
+     */
+    void publish(Room room, Payload line) {
+        if (!peers.isEmpty()) {
+            send(frame(line, "MSG", room.getName()));
+        }
+    }
+
+    /**
+     * publishAll
+     * @description relays a line sent to every room
+     */
+    void publishAll(Payload line) {
+        if (!peers.isEmpty()) {
+            send(frame(line, "ALL"));
+        }
+    }
+
+    /**
+     * sendPrivate
+     * @description relays a private message to a user on another node
+     * @return false if no node has the user
+     */
+    boolean sendPrivate(String target, String from, String text) {
+        if (!remote.containsKey(target)) {
+            return false;
+        }
+        send(frame("PM", escape(target), escape(from), text)); // every node gets it, only the one with the user delivers
+        return true;
+    }
+
+    /**
+     * joined
+     * @description tells the peers a user on this node is now in a room
+     */
+    void joined(ClientSession session, Room room) {
+        if (!peers.isEmpty()) {
+            send(frame("JOIN", room.getName(), escape(session.getName())));
+        }
+    }
+
+    /**
+     * left
+     * @description tells the peers a user has gone from this node
+     */
+    void left(String name) {
+        if (!peers.isEmpty()) {
+            send(frame("LEAVE", escape(name)));
+        }
+    }
+
+    /**
+     * account
+     * @description copies a new or changed account to the peers
+     */
+    void account(String name, String password) {
+        if (!peers.isEmpty()) {
+            send(frame("ACCOUNT", escape(name), password));
+        }
+    }
+
+    /**
+     * renamed
+     * @description copies an account rename to the peers
+     */
+    void renamed(String from, String to) {
+        if (!peers.isEmpty()) {
+            send(frame("RENAME", escape(from), escape(to)));
+        }
+    }
+
+    private void send(byte[] frame) {
+        for (Peer peer : peers) {
+            peer.offer(frame);
+        }
+    }
+
+    // what the rest of the server asks about other nodes
+
+    /**
+     * isConnected
+     * @description true if the user is logged in on another node
+     */
+    boolean isConnected(String name) {
+        return remote.containsKey(name);
+    }
+
+    /**
+     * members
+     * @description the users on other nodes in a room
+     */
+    List<String> members(String room) {
+        List<String> names = new ArrayList<>();
+        remote.forEach((name, presence) -> {
+            if (presence.room.equals(room)) {
+                names.add(name);
+            }
+        });
+        return names;
+    }
+
+    /**
+     * roomSizes
+     * @description how many users each room has on other nodes
+     */
+    Map<String, Integer> roomSizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (Presence presence : remote.values()) {
+            sizes.merge(presence.room, 1, Integer::sum);
+        }
+        return sizes;
+    }
+
+    /**
+     * stats
+     * @description one line about the links, for admins
+     */
+    String stats() {
+        int up = 0;
+        for (Peer peer : peers) {
+            if (peer.connected) {
+                up++;
+            }
+        }
+        long batches = batchesSent.sum();
+        return "Cluster " + node + ": " + up + "/" + peers.size() + " peers up, " + remote.size() + " remote users, "
+                + framesSent.sum() + " frames sent in " + batches + " batches, " + framesDropped.sum() + " dropped, "
+                + framesReceived.sum() + " received";
+    }
+
+    void shutdown() {
+        this.running = false;
+        try {
+            if (this.listener != null) {
+                this.listener.close();
+            }
+            for (Socket socket : inbound) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            Log.warn("cluster.close.failed", e);
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+    }
+
+    // what arrives from peers
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                inbound.add(socket);
+                daemon(() -> receive(socket), "cluster-in-" + socket.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("cluster.accept.failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * receive
+     * @description reads one peer's frames until it goes, then forgets its users. Frames
+     * before the peer's HELLO are dropped, as there is no node to record them against
+     */
+    private void receive(Socket socket) {
+        String from = null;
+        try (InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            String line;
+            while ((line = readFrame(in, buffer)) != null) {
+                framesReceived.increment();
+                String[] f = line.split("\t", 3);
+                if (from == null && !f[0].equals("HELLO")) { // the peer hasn't said who it is yet
+                    Log.warn("cluster.frame.early", "type", f[0]);
+                    continue;
+                }
+                switch (f[0]) {
+                    case "HELLO": // a peer (re)connected and its roster follows
+                        from = f[1];
+                        forget(from);
+                        Log.info("cluster.peer.connected", "peer", from);
+                        break;
+                    case "JOIN":
+                        String joined = unescape(f[2]);
+                        Presence before = remote.put(joined, new Presence(from, f[1]));
+                        if (before != null && !before.room.equals(f[1])) {
+                            rooms.presence(before.room, "-" + joined);
+                        }
+                        rooms.presence(f[1], "+" + joined);
+                        break;
+                    case "LEAVE":
+                        String node = from;
+                        String leaving = unescape(f[1]);
+                        Presence gone = remote.get(leaving);
+                        if (gone != null && gone.node.equals(node) && remote.remove(leaving, gone)) {
+                            rooms.presence(gone.room, "-" + leaving);
+                        }
+                        break;
+                    case "MSG":
+                        if (RoomRegistry.isValidName(f[1])) {
+                            rooms.deliver(f[1], Payload.line(f[2]));
+                        }
+                        break;
+                    case "ALL":
+                        Payload all = Payload.line(line.substring(f[0].length() + 1)); // the whole line, tabs and all
+                        for (Room room : rooms.rooms()) {
+                            room.publish(all);
+                        }
+                        break;
+                    case "PM":
+                        ClientSession recipient = clients.get(unescape(f[1]));
+                        String[] pm = f[2].split("\t", 2); // the sender, then the text
+                        if (recipient != null && pm.length == 2) {
+                            recipient.writePrivate(unescape(pm[0]), pm[1]);
+                        }
+                        break;
+                    case "ACCOUNT":
+                        String name = unescape(f[1]);
+                        if (!users.create(name, f[2])) {
+                            users.update(name, f[2]);
+                        }
+                        break;
+                    case "RENAME":
+                        users.rename(unescape(f[1]), unescape(f[2]));
+                        break;
+                    default:
+                        Log.warn("cluster.frame.unknown", "type", f[0]);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.info("cluster.peer.disconnected", "peer", from);
+            }
+        } finally {
+            inbound.remove(socket);
+            if (from != null) {
+                forget(from);
+            }
+        }
+    }
+
+    /**
+     * readFrame
+     * @description reads up to the next newline. Unlike readLine() a carriage return inside a
+     * chat line is kept as it is
+     * @return null at the end of the stream
+     */
+    private static String readFrame(InputStream in, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private void forget(String node) {
+        remote.forEach((name, presence) -> {
+            if (node.equals(presence.node) && remote.remove(name, presence)) {
+                rooms.presence(presence.room, "-" + name);
+            }
+        });
+    }
+
+    /**
+     * @description the link to one peer: a queue of frames and the thread that sends them,
+     * reconnecting whenever the connection drops
+     */
+    private final class Peer implements Runnable {
+
+        private final String host;
+        private final int port;
+        private final BlockingQueue<byte[]> frames = new ArrayBlockingQueue<>(config.clusterQueue);
+        private volatile boolean connected;
+        private volatile Socket socket;
+
+        Peer(String address) {
+            int colon = address.lastIndexOf(':');
+            this.host = address.substring(0, colon);
+            this.port = Integer.parseInt(address.substring(colon + 1));
+        }
+
+        void offer(byte[] frame) {
+            if (!connected || !frames.offer(frame)) {
+                framesDropped.increment();
+            }
+        }
+
+        public void run() {
+            List<byte[]> batch = new ArrayList<>();
+            while (running) {
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.connect(new InetSocketAddress(host, port), (int) RETRY_MILLIS);
+                    socket.setTcpNoDelay(true); // batching already fills the packets
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    // anything queued while the link was down is stale; the roster below replaces it
+                    frames.clear();
+                    connected = true;
+                    out.write(frame("HELLO", node));
+                    for (ClientSession session : clients.sessions()) {
+                        Room room = session.getRoom();
+                        if (room != null) {
+                            out.write(frame("JOIN", room.getName(), escape(session.getName())));
+                        }
+                    }
+                    out.flush();
+                    while (running) {
+                        batch.add(frames.take());
+                        frames.drainTo(batch, MAX_BATCH - 1);
+                        for (byte[] frame : batch) {
+                            out.write(frame);
+                        }
+                        out.flush();
+                        framesSent.add(batch.size());
+                        batchesSent.increment();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    // the peer is down or went away, try again shortly
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    batch.clear();
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                Socket current = this.socket;
+                if (current != null) {
+                    current.close();
+                }
+            } catch (IOException e) {
+                Log.warn("cluster.peer.close.failed", e);
+            }
+        }
+    }
+
+    private static byte[] frame(String... fields) {
+        return (String.join("\t", fields) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * frame
+     * @description a frame ending in an encoded line, copied without decoding it
+     */
+    private static byte[] frame(Payload line, String... fields) {
+        byte[] head = (String.join("\t", fields) + "\t").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(head.length + line.length());
+        frame.put(head);
+        line.copyTo(frame); // ends with the newline
+        return frame.array();
+    }
+
+    // names may hold tabs, so they are escaped wherever they aren't the last field
+    private static String escape(String name) {
+        return name.replace("\\", "\\\\").replace("\t", "\\t");
+    }
+
+    private static String unescape(String name) {
+        StringBuilder out = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\' && i + 1 < name.length()) {
+                c = name.charAt(++i) == 't' ? '\t' : name.charAt(i);
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
@@ -0,0 +1,101 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @description Watches the dictionary text file and rebuilds the translator when it changes.
+ * The new dictionary is compiled and mapped on this thread, then published with a single
+ * reference swap: a send() in progress keeps the translator it already read, and the next
+ * one picks up the new words. Nobody waits on a lock or sees a half-built dictionary.
+ */
+class DictionaryWatcher implements Runnable {
+
+    private static final long SETTLE_MS = 250; // let an editor finish writing before reading
+
+    private final Path file;
+    private final AtomicReference<BeeTranslator> translator;
+    private WatchService watcher;
+
+    DictionaryWatcher(String file, AtomicReference<BeeTranslator> translator) {
+        this.file = Paths.get(file).toAbsolutePath();
+        this.translator = translator;
+    }
+
+    /**
+     * start
+     * @description starts watching on a background daemon thread
+     */
+    void start() throws IOException {
+        this.watcher = file.getFileSystem().newWatchService();
+        // watch the directory: editors often replace the file rather than write to it
+        file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(this, "dictionary-watcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY); // rebuilding must not compete with broadcasts
+        thread.start();
+    }
+
+    void shutdown() {
+        try {
+            if (watcher != null) {
+                watcher.close();
+            }
+        } catch (IOException e) {
+            Log.warn("dictionary.watch.close.failed", e);
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                if (!changed(watcher.take())) {
+                    continue;
+                }
+                WatchKey more;
+                while ((more = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS)) != null) { // wait for quiet
+                    changed(more);
+                }
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    private boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * reload
+     * @description compiles and maps the changed file, then swaps it in
+     */
+    void reload() {
+        long begin = System.nanoTime();
+        try {
+            BeeDictionary.compile(file.toString(), BeeDictionary.binaryFor(file).toString());
+            BeeDictionary dictionary = BeeDictionary.map(BeeDictionary.binaryFor(file).toString());
+            translator.set(new BeeTranslator(dictionary, BeeDictionary.Direction.TO_BEE, true));
+            Log.info("dictionary.reloaded", "words", dictionary.size(), "ms", (System.nanoTime() - begin) / 1_000_000);
+        } catch (IOException | RuntimeException e) {
+            Log.error("dictionary.reload.failed", "file", file, e); // the old one stays in use
+        }
+    }
+
+}
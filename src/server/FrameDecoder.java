@@ -0,0 +1,99 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * @description Splits a non-blocking byte stream into Wire frames, as LineFramer splits it into
+ * lines. A frame's length comes first, so finding its end takes no scanning. Only the start of
+ * a frame that straddles two reads is kept.
+ */
+class FrameDecoder {
+
+    static final int MAX_FRAME = LineFramer.MAX_LINE; // longest frame accepted from a client
+
+    private byte[] partial; // bytes of an incomplete frame, null when there are none
+    private int length;
+
+    /**
+     * feed
+     * @description consumes the readable bytes of a buffer, passing each complete frame on
+     * @param in a heap buffer flipped for reading
+     * @param frames receives every complete frame
+     * @throws IOException if a frame is too long, or compressed, which clients may not do.
+     * A frame's length is checked as soon as it is read, so at most one frame is buffered
+     */
+    void feed(ByteBuffer in, Consumer<Wire.Frame> frames) throws IOException {
+        byte[] array = in.array();
+        int start = in.arrayOffset() + in.position();
+        int end = in.arrayOffset() + in.limit();
+        in.position(in.limit());
+        if (this.length > 0) { // finish what the last read left
+            append(array, start, end - start);
+            int used = decode(this.partial, 0, this.length, frames);
+            this.length -= used;
+            if (this.length == 0) {
+                this.partial = null;
+            } else {
+                System.arraycopy(this.partial, used, this.partial, 0, this.length);
+            }
+            return;
+        }
+        int used = decode(array, start, end, frames);
+        if (start + used < end) {
+            append(array, start + used, end - start - used);
+        }
+    }
+
+    /**
+     * decode
+     * @return how many bytes of whole frames were consumed
+     */
+    private static int decode(byte[] array, int start, int end, Consumer<Wire.Frame> frames) throws IOException {
+        int at = start;
+        while (at < end) {
+            int length = 0;
+            int i = at;
+            int shift = 0;
+            boolean complete = false;
+            while (i < end) {
+                int b = array[i++];
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    complete = true;
+                    break;
+                }
+                shift += 7;
+                if (shift > 21) {
+                    throw new IOException("Frame too long");
+                }
+            }
+            if (complete && (length < 1 || length > MAX_FRAME)) { // checked before waiting for the rest
+                throw new IOException("Bad frame length " + length);
+            }
+            if (!complete || end - i < length) {
+                break; // the rest hasn't arrived
+            }
+            int opcode = array[i] & 0xFF;
+            if ((opcode & Wire.COMPRESSED) != 0) {
+                throw new IOException("Clients may not send compressed frames");
+            }
+            frames.accept(new Wire.Frame(opcode, Arrays.copyOfRange(array, i + 1, i + length)));
+            at = i + length;
+        }
+        return at - start;
+    }
+
+    private void append(byte[] array, int start, int count) {
+        if (this.partial == null) {
+            this.partial = new byte[Math.max(count, 256)];
+        } else if (this.length + count > this.partial.length) {
+            this.partial = Arrays.copyOf(this.partial, Math.max(this.length + count, this.partial.length * 2));
+        }
+        System.arraycopy(array, start, this.partial, this.length, count);
+        this.length += count;
+    }
+
+}
@@ -0,0 +1,153 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @description One selector thread of the NIO transport. Each loop owns a share of the
+ * connections and a single read buffer that all of them use in turn. Work handed to later()
+ * runs once the current round of events has been handled, so writes made while handling
+ * them go out together.
+ */
+class IoLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // work handed over from other threads
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong((Timer timer) -> timer.due)); // loop thread only
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+    private final Thread thread;
+    private volatile boolean running;
+
+    IoLoop(int index) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "io-" + index);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.running = true;
+        this.thread.start();
+    }
+
+    void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * register
+     * @description hands a freshly accepted connection to this loop and starts its handler
+     */
+    void register(ChannelSession session, Server.ClientHandler handler) {
+        execute(() -> {
+            try {
+                session.getChannel().configureBlocking(false);
+                SelectionKey key = session.getChannel().register(this.selector, SelectionKey.OP_READ, session);
+                session.attach(this, key, handler);
+                handler.start();
+            } catch (IOException e) {
+                Log.warn("loop.register.failed", e);
+                handler.onClose();
+            }
+        });
+    }
+
+    /**
+     * execute
+     * @description runs a task on the loop thread, inline if already on it
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == this.thread) {
+            task.run();
+        } else {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * later
+     * @description runs a task on the loop thread after the events being handled now
+     */
+    void later(Runnable task) {
+        this.tasks.add(task);
+        if (Thread.currentThread() != this.thread) {
+            this.selector.wakeup();
+        } // on the loop thread the next select doesn't wait while tasks are queued
+    }
+
+    /**
+     * schedule
+     * @description runs a task on the loop thread once delayMillis have passed
+     */
+    void schedule(Runnable task, long delayMillis) {
+        long due = System.nanoTime() + delayMillis * 1_000_000L;
+        execute(() -> this.timers.add(new Timer(due, task)));
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                if (!this.tasks.isEmpty()) {
+                    this.selector.selectNow();
+                } else if (this.timers.isEmpty()) {
+                    this.selector.select();
+                } else {
+                    long wait = this.timers.peek().due - System.nanoTime();
+                    this.selector.select(Math.max(1, (wait + 999_999) / 1_000_000));
+                }
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.nanoTime();
+                while (!this.timers.isEmpty() && this.timers.peek().due - now <= 0) {
+                    this.timers.poll().task.run();
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ChannelSession session = (ChannelSession) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        session.onReadable(this.readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.flush();
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("loop.select.failed", e);
+            } catch (RuntimeException e) { // a misbehaving handler must not take the loop down
+                Log.error("loop.handler.failed", e);
+            }
+        }
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) { // let queued goodbyes go out before closing
+            task.run();
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            Log.warn("loop.close.failed", e);
+        }
+    }
+
+    private static final class Timer {
+        final long due; // System.nanoTime() to run at
+        final Runnable task;
+
+        Timer(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * @description Splits a non-blocking byte stream into newline-terminated lines, the same
+ * framing BufferedReader.readLine() gives the blocking sessions. Only the tail of a line that
+ * straddles two reads is kept per connection, so idle connections hold no buffer at all.
+ */
+class LineFramer {
+
+    static final int MAX_LINE = 64 * 1024; // longest line accepted from a client
+
+    private byte[] partial; // bytes of an unterminated line, null when there are none
+    private int length;
+
+    /**
+     * feed
+     * @description consumes the readable bytes of a buffer, passing each complete line on
+     * @param in a heap buffer flipped for reading
+     * @param lines receives every complete line, without its terminator
+     * @throws IOException if a line grows past MAX_LINE
+     */
+    void feed(ByteBuffer in, Consumer<String> lines) throws IOException {
+        byte[] array = in.array();
+        int start = in.arrayOffset() + in.position();
+        int end = in.arrayOffset() + in.limit();
+        for (int i = start; i < end; i++) {
+            if (array[i] == '\n') {
+                lines.accept(line(array, start, i));
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            append(array, start, end - start);
+        }
+        in.position(in.limit());
+    }
+
+    private String line(byte[] array, int start, int end) throws IOException {
+        if (this.length > 0) { // finish the line carried over from the last read
+            append(array, start, end - start);
+            array = this.partial;
+            start = 0;
+            end = this.length;
+            this.length = 0;
+            this.partial = null;
+        }
+        if (end > start && array[end - 1] == '\r') {
+            end--;
+        }
+        return new String(array, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private void append(byte[] array, int start, int count) throws IOException {
+        if (this.length + count > MAX_LINE) {
+            throw new IOException("Line too long");
+        }
+        if (this.partial == null) {
+            this.partial = new byte[Math.max(count, 128)];
+        } else if (this.partial.length < this.length + count) {
+            this.partial = Arrays.copyOf(this.partial, Math.max(this.length + count, this.partial.length * 2));
+        }
+        System.arraycopy(array, start, this.partial, this.length, count);
+        this.length += count;
+    }
+
+}
@@ -0,0 +1,252 @@
+package server;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @description The server's log. A call records an event name, up to two key/value pairs and
+ * an optional exception into a slot of a fixed ring, and returns; one writer thread formats
+ * the records and prints them. Connection threads therefore never format, never wait for
+ * stdout's lock, and never block: when the ring is full the record is dropped and counted.
+ *
+ * Records below the level set with --log-level are skipped before anything is recorded.
+ * They are printed one per line as "time LEVEL thread event key=value ...". WARN and ERROR
+ * records go to stderr, and an ERROR's stack trace is printed after it.
+ */
+final class Log {
+
+    /**
+     * @description how much a record matters, in increasing order
+     */
+    enum Level {
+        DEBUG, // per connection detail, such as sockets closing
+        INFO, // what the server is doing
+        WARN, // something went wrong and the server carried on
+        ERROR // something went wrong that someone should look at
+    }
+
+    private static final int CAPACITY = 8192; // records waiting to be printed, a power of two
+    private static final int MASK = CAPACITY - 1;
+
+    private static final Entry[] RING = new Entry[CAPACITY];
+    private static final AtomicLong HEAD = new AtomicLong(); // the next sequence to claim
+    private static volatile long tail; // the next sequence to print, only moved by the writer
+    private static volatile boolean waiting; // the writer is parked and needs waking
+    private static volatile Level threshold = Level.INFO;
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Entry();
+        }
+        WRITER = new Thread(Log::write, "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    /**
+     * dropped
+     * @description records lost because the ring was full
+     */
+    static long dropped() {
+        return DROPPED.sum();
+    }
+
+    static void debug(String event) {
+        log(Level.DEBUG, event, null, null, null, null, null);
+    }
+
+    static void debug(String event, String key, Object value) {
+        log(Level.DEBUG, event, key, value, null, null, null);
+    }
+
+    static void debug(String event, String key, Object value, Throwable error) {
+        log(Level.DEBUG, event, key, value, null, null, error);
+    }
+
+    static void info(String event) {
+        log(Level.INFO, event, null, null, null, null, null);
+    }
+
+    static void info(String event, String key, Object value) {
+        log(Level.INFO, event, key, value, null, null, null);
+    }
+
+    static void info(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.INFO, event, key1, value1, key2, value2, null);
+    }
+
+    static void warn(String event, Throwable error) {
+        log(Level.WARN, event, null, null, null, null, error);
+    }
+
+    static void warn(String event, String key, Object value) {
+        log(Level.WARN, event, key, value, null, null, null);
+    }
+
+    static void warn(String event, String key, Object value, Throwable error) {
+        log(Level.WARN, event, key, value, null, null, error);
+    }
+
+    static void error(String event, Throwable error) {
+        log(Level.ERROR, event, null, null, null, null, error);
+    }
+
+    static void error(String event, String key, Object value, Throwable error) {
+        log(Level.ERROR, event, key, value, null, null, error);
+    }
+
+    /**
+     * log
+     * @description claims the next slot, fills it and publishes it to the writer
+     */
+    private static void log(Level level, String event, String key1, Object value1, String key2, Object value2, Throwable error) {
+        if (level.compareTo(threshold) < 0) {
+            return;
+        }
+        long sequence = HEAD.get();
+        while (true) {
+            if (sequence - tail >= CAPACITY) { // the writer is a whole ring behind
+                DROPPED.increment();
+                return;
+            }
+            long witness = HEAD.compareAndExchange(sequence, sequence + 1);
+            if (witness == sequence) {
+                break;
+            }
+            sequence = witness;
+        }
+        Entry entry = RING[(int) (sequence & MASK)];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.thread = Thread.currentThread().getName();
+        entry.event = event;
+        entry.key1 = key1;
+        entry.value1 = value1;
+        entry.key2 = key2;
+        entry.value2 = value2;
+        entry.error = error;
+        entry.published = sequence + 1; // the writer reads the fields only after seeing this
+        if (waiting) {
+            waiting = false;
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /**
+     * write
+     * @description the writer loop: prints records in the order they were claimed, flushing
+     * whenever it catches up, and parks while there are none
+     */
+    private static void write() {
+        StringBuilder line = new StringBuilder(256);
+        boolean unflushed = false;
+        while (true) {
+            long next = tail;
+            Entry entry = RING[(int) (next & MASK)];
+            if (entry.published != next + 1) {
+                if (unflushed) {
+                    System.out.flush();
+                    System.err.flush();
+                    unflushed = false;
+                }
+                waiting = true;
+                if (entry.published != next + 1) { // checked again so a record published meanwhile isn't missed
+                    LockSupport.parkNanos(100_000_000L);
+                }
+                waiting = false;
+                continue;
+            }
+            PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            line.setLength(0);
+            format(entry, line);
+            out.append(line);
+            if (entry.level == Level.ERROR && entry.error != null) {
+                entry.error.printStackTrace(out);
+            }
+            entry.clear();
+            tail = next + 1;
+            unflushed = true;
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(entry.time)).append(' ').append(entry.level).append(' ');
+        line.append(entry.thread.isEmpty() ? "-" : entry.thread).append(' ').append(entry.event);
+        if (entry.key1 != null) {
+            pair(line, entry.key1, entry.value1);
+        }
+        if (entry.key2 != null) {
+            pair(line, entry.key2, entry.value2);
+        }
+        if (entry.error != null) {
+            pair(line, "error", entry.error.toString());
+        }
+        line.append('\n');
+    }
+
+    /**
+     * pair
+     * @description appends key=value, quoting values with spaces, quotes or equals signs
+     */
+    private static void pair(StringBuilder line, String key, Object value) {
+        String text = String.valueOf(value);
+        line.append(' ').append(key).append('=');
+        if (text.isEmpty() || text.indexOf(' ') >= 0 || text.indexOf('"') >= 0 || text.indexOf('=') >= 0) {
+            line.append('"').append(text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        } else {
+            line.append(text);
+        }
+    }
+
+    /**
+     * flush
+     * @description waits up to a second for the writer to print what has been logged, so the
+     * last records aren't lost when the server exits
+     */
+    static void flush() {
+        long end = HEAD.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (tail < end && System.nanoTime() < deadline) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    /**
+     * @description one slot of the ring, reused for every record that lands in it
+     */
+    private static final class Entry {
+        volatile long published; // the sequence of the record in it, plus one, once filled
+        long time;
+        Level level;
+        String thread;
+        String event;
+        String key1;
+        Object value1;
+        String key2;
+        Object value2;
+        Throwable error;
+
+        void clear() {
+            this.thread = null;
+            this.event = null;
+            this.value1 = null;
+            this.value2 = null;
+            this.error = null;
+        }
+    }
+
+}
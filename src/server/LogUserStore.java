@@ -0,0 +1,269 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * @description The user accounts, all kept in memory and persisted write-behind.
+ *
+ * users.dat is a snapshot in the original "name:password" format. Every change after it is
+ * appended to users.log as "+name:password" or "-name", so a signup costs one short append
+ * no matter how many users there are. A writer thread appends changes in batches (group
+ * commit) and forces each batch to disk if fsync is on. Once the log has grown past the size
+ * of the snapshot, the writer writes a new snapshot to a temporary file, forces it, moves it
+ * over users.dat in one step and empties the log. Startup reads the snapshot and replays the
+ * log; a torn last line from a crash is ignored. Changes are made and queued under one lock,
+ * so the log replays them in the order the map saw them; lookups don't take it.
+ */
+class LogUserStore implements UserStore {
+
+    private static final int MIN_COMPACTION = 10_000; // log records before compaction is considered
+
+    private final ConcurrentHashMap<String, String> users = new ConcurrentHashMap<>(); // read without the lock
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>(); // log records not yet written
+    private final Object changes = new Object(); // held while a change is made and queued, so the log is in map order
+    private final Path snapshot;
+    private final Path log;
+    private final boolean fsync;
+    private FileChannel out;
+    private int logRecords; // records in the log since the last snapshot
+    private Thread writer;
+    private volatile boolean running;
+
+    private LogUserStore(Path snapshot, boolean fsync) {
+        this.snapshot = snapshot;
+        this.log = snapshot.resolveSibling(snapshot.getFileName().toString().replaceFirst("\\.dat$", "") + ".log");
+        this.fsync = fsync;
+    }
+
+    /**
+     * open
+     * @description loads the snapshot, replays the log and starts the writer
+     * @param file the snapshot, e.g. src/server/users.dat
+     * @param fsync force every batch of changes to disk before taking the next
+     */
+    static LogUserStore open(String file, boolean fsync) throws IOException {
+        LogUserStore store = new LogUserStore(Paths.get(file), fsync);
+        store.load();
+        store.out = FileChannel.open(store.log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        store.running = true;
+        store.writer = new Thread(store::write, "user-store");
+        store.writer.setDaemon(true);
+        store.writer.start();
+        return store;
+    }
+
+    private void load() throws IOException {
+        if (Files.exists(snapshot)) {
+            try (BufferedReader in = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int colon = line.lastIndexOf(':');
+                    if (colon > 0) {
+                        users.put(line.substring(0, colon), line.substring(colon + 1));
+                    }
+                }
+            }
+        }
+        if (Files.exists(log)) {
+            long complete = 0; // bytes up to the last whole record
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8))) {
+                long size = channel.size();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    complete += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    if (complete > size) { // no newline: the last write was cut short
+                        complete -= line.getBytes(StandardCharsets.UTF_8).length + 1;
+                        break;
+                    }
+                    apply(line);
+                    logRecords++;
+                }
+            }
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                channel.truncate(complete); // drop the torn record so new ones start on a fresh line
+            }
+        }
+    }
+
+    private void apply(String record) {
+        if (record.startsWith("+")) {
+            int colon = record.lastIndexOf(':');
+            if (colon > 1) {
+                users.put(record.substring(1, colon), record.substring(colon + 1));
+            }
+        } else if (record.startsWith("-")) {
+            users.remove(record.substring(1));
+        }
+    }
+
+    public String get(String name) {
+        return users.get(name);
+    }
+
+    public boolean contains(String name) {
+        return users.containsKey(name);
+    }
+
+    public long size() {
+        return users.size();
+    }
+
+    /**
+     * forEach
+     * @description visits every account, e.g. to copy them to another store
+     */
+    void forEach(BiConsumer<String, String> action) {
+        users.forEach(action);
+    }
+
+    public boolean accepts(String name) {
+        return true; // a line of text holds any name
+    }
+
+    public boolean create(String name, String password) {
+        synchronized (changes) {
+            if (users.putIfAbsent(name, password) != null) {
+                return false;
+            }
+            pending.add("+" + name + ":" + password + "\n");
+            return true;
+        }
+    }
+
+    public void update(String name, String password) {
+        synchronized (changes) {
+            if (users.replace(name, password) != null) {
+                pending.add("+" + name + ":" + password + "\n");
+            }
+        }
+    }
+
+    public boolean rename(String from, String to) {
+        synchronized (changes) {
+            String password = users.get(from);
+            if (password == null || users.putIfAbsent(to, password) != null) {
+                return false;
+            }
+            users.remove(from);
+            pending.add("+" + to + ":" + password + "\n-" + from + "\n"); // one record batch, never split
+            return true;
+        }
+    }
+
+    /**
+     * close
+     * @description writes what is pending and stops the writer
+     */
+    public void close() {
+        running = false;
+        pending.add(""); // wakes the writer; not interrupted, as that would close the log channel
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * write
+     * @description the writer loop: appends every pending record in one write per batch
+     */
+    private void write() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder records = new StringBuilder();
+        while (running || !pending.isEmpty()) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            pending.drainTo(batch);
+            records.setLength(0);
+            for (String record : batch) {
+                if (!record.isEmpty()) {
+                    records.append(record);
+                    logRecords++;
+                }
+            }
+            batch.clear();
+            if (records.length() == 0) {
+                continue;
+            }
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                if (fsync) {
+                    out.force(false);
+                }
+                if (logRecords > Math.max(MIN_COMPACTION, users.size())) {
+                    compact();
+                }
+            } catch (IOException e) {
+                Log.error("users.write.failed", e);
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.warn("users.close.failed", e);
+        }
+    }
+
+    /**
+     * compact
+     * @description replaces the snapshot with the current users and empties the log. Runs on
+     * the writer thread, so nothing is appended meanwhile; changes made while the snapshot is
+     * written are still queued and land in the fresh log, where replaying them is harmless
+     */
+    private void compact() throws IOException {
+        Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        StringBuilder text = new StringBuilder();
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                text.append(user.getKey()).append(':').append(user.getValue()).append('\n');
+                if (text.length() > 1 << 16) {
+                    writeText(file, text);
+                }
+            }
+            writeText(file, text);
+            file.force(true);
+        }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out.truncate(0);
+        if (fsync) {
+            out.force(true);
+        }
+        logRecords = 0;
+    }
+
+    private static void writeText(FileChannel file, StringBuilder text) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            file.write(bytes);
+        }
+        text.setLength(0);
+    }
+
+}
@@ -0,0 +1,404 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @description The broadcast history, kept on disk so it survives restarts.
+ *
+ * History is a series of segments in one directory, each named after the sequence number of
+ * its first message. A segment's .log file holds the lines exactly as they were sent; its
+ * .idx file holds a 16-byte entry per line: the time it was sent, and where it sits in the
+ * .log. Only the newest segment is written. Both of its files are memory mapped, so an append
+ * is a copy into the page cache; when either is full a new segment is started. Replays find
+ * their range in the index and hand the .log bytes to the socket with transferTo(), one
+ * region per segment.
+ *
+ * The index has room for lines of AVERAGE_LINE bytes on average; a segment of shorter lines
+ * rolls when its index fills. Once a segment is no longer written it is sealed: its index is
+ * cut to the entries it holds and mapped read-only, so old segments cost only what they use.
+ *
+ * Whole segments are deleted, oldest first, once the history is over its size limit or a
+ * segment's newest line is older than the age limit.
+ */
+class MessageLog {
+
+    private static final int INDEX_ENTRY = 16; // sent time in millis, position, length
+    private static final int AVERAGE_LINE = 32; // bytes per line the index is sized for
+    private static final long RETENTION_CHECK_MILLIS = 60_000; // how often age is checked between rolls
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final List<Segment> segments = new ArrayList<>(); // oldest first, the last is being written
+    private long lastTimestamp;
+    private long lastRetention;
+    private boolean closed; // appends are dropped and replays find nothing
+
+    /**
+     * @description one segment's files. The index of a segment no longer being written stays
+     * mapped read-only for lookups.
+     */
+    private static final class Segment {
+        final long base; // sequence number of the first line
+        final Path logPath;
+        final Path indexPath;
+        final FileChannel log; // read by replays
+        MappedByteBuffer data; // the newest segment's .log, null once sealed
+        MappedByteBuffer index; // read-only once sealed
+        int count; // lines in the segment
+        int end; // bytes of lines in the .log
+        private int pins; // replayed regions not yet sent or dropped
+        private boolean retired; // deleted or closed; the channel closes once unpinned
+
+        Segment(Path directory, long base) throws IOException {
+            this.base = base;
+            this.logPath = directory.resolve(String.format("%020d.log", base));
+            this.indexPath = directory.resolve(String.format("%020d.idx", base));
+            this.log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        long timestamp(int i) {
+            return index.getLong(i * INDEX_ENTRY);
+        }
+
+        int position(int i) {
+            return index.getInt(i * INDEX_ENTRY + 8);
+        }
+
+        long newest() {
+            return count == 0 ? 0 : timestamp(count - 1);
+        }
+
+        synchronized void pin() {
+            pins++;
+        }
+
+        synchronized void unpin() {
+            if (--pins == 0 && retired) {
+                closeLog();
+            }
+        }
+
+        /**
+         * retire
+         * @description lets go of the segment. Its channel is closed now, or when the last
+         * region replayed from it has been sent or dropped
+         */
+        synchronized void retire() {
+            retired = true;
+            data = null;
+            index = null; // unmapped once collected
+            if (pins == 0) {
+                closeLog();
+            }
+        }
+
+        private void closeLog() {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Log.warn("history.close.failed", "segment", logPath, e);
+            }
+        }
+    }
+
+    private MessageLog(Path directory, int segmentBytes, long maxBytes, long maxAgeMillis) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * open
+     * @description opens the history in a directory, carrying on after the newest line
+     * @param dir the directory, created if missing
+     * @param segmentBytes the size of one segment's .log
+     * @param maxBytes the history kept, at least the newest segment
+     * @param maxAgeMillis how long lines are kept
+     */
+    static MessageLog open(String dir, int segmentBytes, long maxBytes, long maxAgeMillis) throws IOException {
+        MessageLog history = new MessageLog(Paths.get(dir), segmentBytes, maxBytes, maxAgeMillis);
+        Files.createDirectories(history.directory);
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(history.directory, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        bases.sort(null);
+        for (long base : bases) {
+            history.segments.add(history.recover(base));
+        }
+        if (history.segments.isEmpty()) {
+            history.segments.add(history.create(0));
+        } else {
+            for (int i = 0; i < history.segments.size() - 1; i++) {
+                history.seal(history.segments.get(i));
+            }
+            Segment newest = history.segments.get(history.segments.size() - 1);
+            history.lastTimestamp = newest.newest();
+            if (newest.end > segmentBytes || newest.count >= history.entries()) { // written with bigger segments
+                history.seal(newest);
+                history.segments.add(history.create(newest.base + newest.count));
+            } else {
+                newest.index = history.mapIndex(newest);
+                newest.data = map(newest.log, segmentBytes);
+                newest.data.position(newest.end);
+            }
+        }
+        history.retain();
+        return history;
+    }
+
+    /**
+     * recover
+     * @description maps a segment's index read-only, as long as the file is, and counts its
+     * lines. An entry is written after its line, so the first empty entry is the end
+     */
+    private Segment recover(long base) throws IOException {
+        Segment segment = new Segment(directory, base);
+        int capacity;
+        try (FileChannel index = FileChannel.open(segment.indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            capacity = (int) Math.min(index.size() / INDEX_ENTRY, Integer.MAX_VALUE / INDEX_ENTRY);
+            segment.index = mapReadOnly(index, capacity * INDEX_ENTRY);
+        }
+        while (segment.count < capacity && segment.timestamp(segment.count) != 0) {
+            segment.count++;
+        }
+        if (segment.count > 0) {
+            int last = segment.count - 1;
+            segment.end = segment.position(last) + segment.index.getInt(last * INDEX_ENTRY + 12);
+        }
+        return segment;
+    }
+
+    private Segment create(long base) throws IOException {
+        Segment segment = new Segment(directory, base);
+        segment.index = mapIndex(segment);
+        segment.data = map(segment.log, segmentBytes);
+        return segment;
+    }
+
+    /**
+     * mapIndex
+     * @description maps the index of the segment being written, at its full size
+     */
+    private MappedByteBuffer mapIndex(Segment segment) throws IOException {
+        try (FileChannel index = FileChannel.open(segment.indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return map(index, indexBytes());
+        }
+    }
+
+    /**
+     * seal
+     * @description cuts a segment's index to the entries it holds and maps it read-only, once
+     * nothing more is written to it
+     */
+    private void seal(Segment segment) throws IOException {
+        int size = segment.count * INDEX_ENTRY;
+        try (FileChannel index = FileChannel.open(segment.indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (index.size() > size) {
+                index.truncate(size);
+            }
+            segment.index = mapReadOnly(index, size); // the writable mapping is unmapped once collected
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, int size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static MappedByteBuffer mapReadOnly(FileChannel channel, int size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private int entries() {
+        return segmentBytes / AVERAGE_LINE;
+    }
+
+    private int indexBytes() {
+        return entries() * INDEX_ENTRY;
+    }
+
+    /**
+     * append
+     * @description adds a broadcast line to the history
+     */
+    synchronized void append(Payload line) {
+        try {
+            if (closed || line.length() > segmentBytes) {
+                return; // closed, or too big to keep
+            }
+            Segment segment = segments.get(segments.size() - 1);
+            if (segment.end + line.length() > segmentBytes || segment.count == entries()) {
+                segment = roll(segment);
+            }
+            long now = Math.max(System.currentTimeMillis(), lastTimestamp); // keep the index sorted if the clock steps back
+            lastTimestamp = now;
+            line.copyTo(segment.data);
+            int at = segment.count * INDEX_ENTRY;
+            segment.index.putInt(at + 8, segment.end);
+            segment.index.putInt(at + 12, line.length());
+            segment.index.putLong(at, now); // last, so a crash never leaves an entry without its line
+            segment.count++;
+            segment.end += line.length();
+            if (now - lastRetention > RETENTION_CHECK_MILLIS) {
+                retain();
+            }
+        } catch (IOException e) {
+            Log.error("history.append.failed", e);
+        }
+    }
+
+    private Segment roll(Segment full) throws IOException {
+        full.data.force();
+        full.index.force();
+        full.data = null;
+        seal(full);
+        Segment next = create(full.base + full.count);
+        segments.add(next);
+        retain();
+        return next;
+    }
+
+    /**
+     * retain
+     * @description deletes the oldest segments while the history is too big or too old.
+     * Their channels stay open until every replay already queued from them has been sent
+     */
+    private void retain() throws IOException {
+        long now = System.currentTimeMillis();
+        lastRetention = now;
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.end;
+        }
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (total <= maxBytes && now - oldest.newest() <= maxAgeMillis) {
+                break;
+            }
+            segments.remove(0);
+            total -= oldest.end;
+            Files.deleteIfExists(oldest.logPath);
+            Files.deleteIfExists(oldest.indexPath);
+            oldest.retire();
+        }
+    }
+
+    /**
+     * last
+     * @description the newest lines, ready to queue
+     * @param n how many lines
+     */
+    synchronized List<Payload> last(int n) {
+        List<Payload> regions = new ArrayList<>();
+        int remaining = closed ? 0 : n;
+        for (int i = segments.size() - 1; i >= 0 && remaining > 0; i--) {
+            Segment segment = segments.get(i);
+            int from = Math.max(0, segment.count - remaining);
+            remaining -= segment.count - from;
+            addRegion(regions, segment, from);
+        }
+        Collections.reverse(regions);
+        return regions;
+    }
+
+    /**
+     * since
+     * @description the lines sent at or after a time, ready to queue
+     * @param millis the time in milliseconds since the epoch
+     */
+    synchronized List<Payload> since(long millis) {
+        List<Payload> regions = new ArrayList<>();
+        for (Segment segment : closed ? Collections.<Segment>emptyList() : segments) {
+            if (segment.newest() < millis) {
+                continue;
+            }
+            int low = 0;
+            int high = segment.count - 1; // the first line at or after millis is in [low, high]
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (segment.timestamp(mid) < millis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            addRegion(regions, segment, low);
+        }
+        return regions;
+    }
+
+    private void addRegion(List<Payload> regions, Segment segment, int from) {
+        if (from < segment.count) {
+            int start = segment.position(from);
+            segment.pin();
+            regions.add(Payload.region(segment.log, start, segment.end - start, segment::unpin));
+        }
+    }
+
+    /**
+     * size
+     * @description the lines in the history
+     */
+    synchronized long size() {
+        Segment newest = segments.get(segments.size() - 1);
+        return newest.base + newest.count - segments.get(0).base;
+    }
+
+    /**
+     * close
+     * @description forces and closes the files, each once the replays queued from it are sent.
+     * A history with no lines is deleted, so a room joined but never spoken in leaves
+     * nothing behind
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        boolean empty = size() == 0;
+        closed = true;
+        try {
+            for (Segment segment : segments) {
+                if (segment.data != null) {
+                    segment.data.force();
+                }
+                segment.index.force();
+                segment.retire();
+            }
+            if (empty) {
+                for (Segment segment : segments) {
+                    Files.deleteIfExists(segment.logPath);
+                    Files.deleteIfExists(segment.indexPath);
+                }
+                Files.deleteIfExists(directory);
+            }
+        } catch (IOException e) {
+            Log.warn("history.close.failed", e);
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * @description The server's counters, histograms and gauges. The hot paths only add to
+ * striped counters (LongAdder), so threads recording at once don't contend and nothing is
+ * locked; the stripes are summed when the metrics are read. Gauges, such as queue depths, are
+ * computed only when read, so they cost nothing in between.
+ *
+ * scrape() writes everything in the Prometheus text format, which is what MetricsEndpoint
+ * serves.
+ */
+class Metrics {
+
+    static final Metrics SERVER = new Metrics(); // the one server in this process
+
+    private final List<Metric> metrics = new ArrayList<>(); // in the order they are scraped
+
+    final LongAdder connectionsAccepted = counter("bee_connections_accepted_total", "Connections accepted");
+    final LongAdder connectionsActive = upDown("bee_connections_active", "Connections open now, logged in or not");
+    final LongAdder connectionsRejected = counter("bee_connections_rejected_total", "Connections turned away because the server was full or overloaded");
+    final LongAdder rateLimited = counter("bee_rate_limited_total", "Lines dropped because a session or its address sent too fast");
+    final LongAdder logins = counter("bee_logins_total", "Successful logins and sign ups");
+    final LongAdder loginFailures = counter("bee_login_failures_total", "Logins refused for a wrong password");
+    final LongAdder bytesIn = counter("bee_bytes_in_total", "Bytes read from clients");
+    final LongAdder messages = counter("bee_messages_total", "Chat messages sent, counted once however many receive them");
+    final Histogram authSeconds = histogram("bee_auth_seconds", "From receiving a password to answering it, hashing included");
+    final Histogram translateSeconds = histogram("bee_translate_seconds", "Translating and encoding one message");
+    final Histogram fanoutSeconds = histogram("bee_fanout_seconds", "From publishing a message to a room to it being queued for every member");
+
+    /**
+     * counter
+     * @description a counter that only goes up
+     */
+    LongAdder counter(String name, String help) {
+        LongAdder counter = new LongAdder();
+        counter(name, help, counter::sum);
+        return counter;
+    }
+
+    /**
+     * counter
+     * @description a counter kept elsewhere, such as the translation cache's hits
+     */
+    synchronized void counter(String name, String help, LongSupplier value) {
+        metrics.add(new Metric(name, help, "counter", value, null));
+    }
+
+    /**
+     * gauge
+     * @description a value computed when it is read
+     */
+    synchronized void gauge(String name, String help, LongSupplier value) {
+        metrics.add(new Metric(name, help, "gauge", value, null));
+    }
+
+    private LongAdder upDown(String name, String help) {
+        LongAdder value = new LongAdder();
+        gauge(name, help, value::sum);
+        return value;
+    }
+
+    private synchronized Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        metrics.add(new Metric(name, help, "histogram", null, histogram));
+        return histogram;
+    }
+
+    /**
+     * scrape
+     * @description every metric in the Prometheus text format
+     */
+    synchronized String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : metrics) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            if (metric.histogram == null) {
+                out.append(metric.name).append(' ').append(metric.value.getAsLong()).append('\n');
+            } else {
+                metric.histogram.writeTo(metric.name, out);
+            }
+        }
+        return out.toString();
+    }
+
+    private static final class Metric {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value; // null for a histogram
+        final Histogram histogram;
+
+        Metric(String name, String help, String type, LongSupplier value, Histogram histogram) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    /**
+     * @description durations in power-of-two buckets of nanoseconds, from 1us up to about
+     * 17 minutes. Recording is three adds to striped counters.
+     */
+    static final class Histogram {
+
+        private static final int FIRST = 10; // the first bucket holds up to 2^10 ns, about 1us
+        private static final int BUCKETS = 30; // the last holds everything over 2^39 ns
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * record
+         * @description counts a duration in nanoseconds
+         */
+        void record(long nanos) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos - 1)) - FIRST; // the least i with nanos <= 2^(FIRST + i)
+            buckets[Math.min(Math.max(bucket, 0), BUCKETS - 1)].increment();
+            count.increment();
+            sum.add(nanos);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        /**
+         * writeTo
+         * @description the buckets as cumulative counts, with upper bounds in seconds
+         */
+        private void writeTo(String name, StringBuilder out) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{le=\"")
+                        .append(String.format(Locale.ROOT, "%.9g", (1L << (FIRST + i)) / 1e9)).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += buckets[BUCKETS - 1].sum();
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.9f", sum.sum() / 1e9)).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @description Serves the metrics as plain text at http://127.0.0.1:port/metrics for a
+ * Prometheus scraper or curl. It listens on the loopback address only, so nothing outside the
+ * host can read it; a scrape is handled on the endpoint's own thread, never a client's.
+ */
+class MetricsEndpoint {
+
+    private final HttpServer server;
+
+    MetricsEndpoint(int port, Metrics metrics) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", exchange -> scrape(exchange, metrics));
+    }
+
+    void start() {
+        this.server.start();
+        Log.info("metrics.listening", "url", "http://127.0.0.1:" + this.server.getAddress().getPort() + "/metrics");
+    }
+
+    void shutdown() {
+        this.server.stop(0);
+    }
+
+    private static void scrape(HttpExchange exchange, Metrics metrics) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body); // closing the exchange ends the response
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @description A bounded queue of payloads waiting to be written to one client. Any
+ * thread may offer; only the session's writer takes. When the queue is full the configured
+ * overflow policy decides what gives, so a slow reader never blocks the sender.
+ *
+ * A group counts as one entry and is dropped whole. Once the writer has taken its first part
+ * the rest can't be dropped, so a frame is never cut short on the wire.
+ *
+ * A line the queue refuses or throws away is released here; one handed to the writer is
+ * released by the writer once sent.
+ */
+class OutboundQueue {
+
+    /**
+     * @description what happened to an offered line
+     */
+    enum Result {
+        QUEUED, // the line is waiting to be written
+        DROPPED, // the line or an older one was thrown away
+        OVERFLOW, // the queue is full and the client should be disconnected
+        CLOSED // the session is closing and takes no more lines
+    }
+
+    private final ArrayDeque<Payload> queue = new ArrayDeque<>();
+    private final ArrayDeque<Payload> unfolding = new ArrayDeque<>(); // the rest of a group the writer has started
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final ServerConfig.Overflow policy;
+
+    private boolean closed;
+    private volatile int highWater; // deepest the queue has been
+    private volatile long dropped; // lines lost to the overflow policy
+
+    OutboundQueue(int capacity, ServerConfig.Overflow policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * offer
+     * @description adds a line without blocking, applying the overflow policy if full
+     */
+    Result offer(Payload line) {
+        lock.lock();
+        try {
+            if (closed) {
+                line.release();
+                return Result.CLOSED;
+            }
+            Result result = Result.QUEUED;
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        line.release();
+                        dropped++;
+                        return Result.DROPPED;
+                    case DROP_OLDEST:
+                        queue.poll().release();
+                        dropped++;
+                        result = Result.DROPPED;
+                        break;
+                    case DISCONNECT:
+                        line.release();
+                        dropped++;
+                        return Result.OVERFLOW;
+                }
+            }
+            queue.add(line);
+            if (queue.size() > highWater) {
+                highWater = queue.size();
+            }
+            notEmpty.signal();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * poll
+     * @description takes the oldest line, or the next part of a group, or null if there is none
+     */
+    Payload poll() {
+        lock.lock();
+        try {
+            Payload next = unfolding.poll();
+            if (next == null) {
+                next = queue.poll();
+                if (next != null && next.isGroup()) {
+                    Collections.addAll(unfolding, next.parts());
+                    next = unfolding.poll();
+                }
+            }
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * awaitDrain
+     * @description blocks until lines are queued or the queue is closed, then moves them all out
+     * @param batch receives the queued lines
+     * @return false once the queue is closed and empty
+     */
+    boolean awaitDrain(Collection<Payload> batch) throws InterruptedException {
+        return awaitDrain(batch, 0);
+    }
+
+    /**
+     * awaitDrain
+     * @description like awaitDrain(batch), but once the first line arrives waits up to
+     * lingerNanos for more to join it, unless the queue closes or fills halfway first
+     */
+    boolean awaitDrain(Collection<Payload> batch, long lingerNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && unfolding.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            if (queue.isEmpty() && unfolding.isEmpty()) {
+                return false;
+            }
+            long remaining = lingerNanos;
+            while (remaining > 0 && !closed && queue.size() < capacity / 2) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            batch.addAll(unfolding);
+            unfolding.clear();
+            for (Payload line : queue) {
+                if (line.isGroup()) {
+                    Collections.addAll(batch, line.parts());
+                } else {
+                    batch.add(line);
+                }
+            }
+            queue.clear();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * close
+     * @description stops taking lines. What is already queued can still be drained
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * clear
+     * @description throws away everything still queued
+     */
+    void clear() {
+        lock.lock();
+        try {
+            for (Payload line : queue) {
+                line.release();
+            }
+            for (Payload line : unfolding) {
+                line.release();
+            }
+            queue.clear();
+            unfolding.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int highWater() {
+        return highWater;
+    }
+
+    long dropped() {
+        return dropped;
+    }
+
+}
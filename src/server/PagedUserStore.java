@@ -0,0 +1,496 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @description User accounts in an on-disk hash table, for user counts that don't fit in
+ * memory. Opening it reads one header page, so startup time doesn't depend on how many users
+ * there are, and memory use is bounded by a small cache of recently used accounts.
+ *
+ * The table uses linear hashing over 4 KB pages. users.db holds a header page followed by one
+ * primary page per bucket; buckets that fill up chain overflow pages kept in users.ovf. When
+ * the table gets too full the next bucket in turn is split in two, so it grows one bucket at
+ * a time and never has to be rebuilt. Each page holds fixed-size records of a name and a
+ * password hash. Lookups read pages through the OS page cache and may run in parallel;
+ * changes take a write lock.
+ *
+ * A split never overwrites a record before its new copy is reachable. It writes the new
+ * bucket, then the header that sends lookups there; then the old bucket's remaining records
+ * on fresh overflow pages, then its first page pointing at them; and only then frees the old
+ * overflow pages. A crash mid-split therefore leaves either the table before the split, or
+ * the split done with stale copies of the moved records in the old bucket, which no lookup
+ * reaches and the next split of that bucket drops, and at worst a few overflow pages that are
+ * never reused.
+ */
+class PagedUserStore implements UserStore {
+
+    private static final int PAGE = 4096;
+    private static final int RECORD = 256; // name length, name, password length, password
+    private static final int MAX_FIELD = 127; // bytes of name or password
+    private static final int PAGE_HEADER = 8; // record count, then the next overflow page
+    private static final int SLOTS = (PAGE - PAGE_HEADER) / RECORD;
+    private static final int INITIAL_BUCKETS = 64;
+    private static final double MAX_LOAD = 0.75; // split once records fill this much of the buckets
+    private static final int MAGIC = 0x42455553; // "BEUS"
+    private static final int VERSION = 1;
+
+    private final FileChannel buckets;
+    private final FileChannel overflow;
+    private final boolean fsync;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, String> hot; // recently used accounts, guarded by itself
+
+    // the header, guarded by lock
+    private int level; // the table has INITIAL_BUCKETS << level buckets before this round of splits
+    private int split; // the next bucket to split
+    private int overflowPages; // overflow pages ever allocated
+    private int freeOverflow; // first reusable overflow page, 0 if none
+    private long count;
+
+    private PagedUserStore(FileChannel buckets, FileChannel overflow, boolean fsync, int cacheSize) {
+        this.buckets = buckets;
+        this.overflow = overflow;
+        this.fsync = fsync;
+        this.hot = new LinkedHashMap<String, String>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * open
+     * @description opens the store, creating it if needed
+     * @param file the table, e.g. src/server/users.db; overflow pages go next to it in .ovf
+     * @param fsync force every change to disk before returning
+     * @param cacheSize the most accounts kept in memory
+     */
+    static PagedUserStore open(String file, boolean fsync, int cacheSize) throws IOException {
+        Path path = Paths.get(file);
+        Path overflowPath = path.resolveSibling(path.getFileName().toString().replaceFirst("\\.db$", "") + ".ovf");
+        FileChannel buckets = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel overflow = FileChannel.open(overflowPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        PagedUserStore store = new PagedUserStore(buckets, overflow, fsync, cacheSize);
+        if (buckets.size() == 0) {
+            store.writeHeader();
+        } else {
+            store.readHeader();
+        }
+        return store;
+    }
+
+    /**
+     * isNew
+     * @description true if the store holds no accounts yet, e.g. to import old ones
+     */
+    boolean isNew() {
+        return size() == 0;
+    }
+
+    public String get(String name) {
+        synchronized (hot) {
+            String password = hot.get(name);
+            if (password != null) {
+                return password;
+            }
+        }
+        lock.readLock().lock();
+        try {
+            Slot slot = find(name);
+            if (slot == null) {
+                return null;
+            }
+            cache(name, slot.password);
+            return slot.password;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean accepts(String name) {
+        return fits(name);
+    }
+
+    public boolean create(String name, String password) {
+        if (!fits(name) || !fits(password)) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            if (find(name) != null) {
+                return false;
+            }
+            insert(bucketOf(name), name, password);
+            count++;
+            if (count > MAX_LOAD * SLOTS * bucketCount()) {
+                splitNext();
+            }
+            writeHeader();
+            sync();
+            cache(name, password);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void update(String name, String password) {
+        if (!fits(name) || !fits(password)) {
+            Log.warn("users.update.refused", "name", name);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Slot slot = find(name);
+            if (slot == null) {
+                return;
+            }
+            putRecord(slot.page, slot.index, name, password);
+            writePage(slot.position, slot.page);
+            sync();
+            cache(name, password);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean rename(String from, String to) {
+        lock.writeLock().lock();
+        try {
+            Slot slot = find(from);
+            if (slot == null || !fits(to) || find(to) != null) {
+                return false;
+            }
+            removeRecord(slot.page, slot.index);
+            writePage(slot.position, slot.page);
+            insert(bucketOf(to), to, slot.password);
+            writeHeader();
+            sync();
+            synchronized (hot) {
+                hot.remove(from);
+            }
+            cache(to, slot.password);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            writeHeader();
+            buckets.force(true);
+            overflow.force(true);
+            buckets.close();
+            overflow.close();
+        } catch (IOException e) {
+            Log.warn("users.close.failed", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @description where a record was found, with its page as read
+     */
+    private static final class Slot {
+        final long position; // the page's place: >= 0 in users.db, < 0 an overflow page number
+        final ByteBuffer page;
+        final int index;
+        final String password;
+
+        Slot(long position, ByteBuffer page, int index, String password) {
+            this.position = position;
+            this.page = page;
+            this.index = index;
+            this.password = password;
+        }
+    }
+
+    private Slot find(String name) throws IOException {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        long position = bucketPosition(bucketOf(name));
+        while (true) {
+            ByteBuffer page = readPage(position);
+            int records = page.getShort(0);
+            for (int i = 0; i < records; i++) {
+                if (nameEquals(page, i, key)) {
+                    return new Slot(position, page, i, password(page, i));
+                }
+            }
+            int next = page.getInt(4);
+            if (next == 0) {
+                return null;
+            }
+            position = -next;
+        }
+    }
+
+    /**
+     * insert
+     * @description adds a record to the first page of a bucket's chain with room, adding an
+     * overflow page if they are all full
+     */
+    private void insert(int bucket, String name, String password) throws IOException {
+        long position = bucketPosition(bucket);
+        while (true) {
+            ByteBuffer page = readPage(position);
+            int records = page.getShort(0);
+            if (records < SLOTS) {
+                putRecord(page, records, name, password);
+                page.putShort(0, (short) (records + 1));
+                writePage(position, page);
+                return;
+            }
+            int next = page.getInt(4);
+            if (next == 0) {
+                next = allocateOverflow();
+                page.putInt(4, next);
+                writePage(position, page);
+            }
+            position = -next;
+        }
+    }
+
+    /**
+     * splitNext
+     * @description splits the next bucket in turn, moving about half of its records to a new
+     * bucket at the end of the table, in the crash-safe order the class describes. The caller
+     * writes the header once more afterwards, saving the freed overflow pages
+     */
+    private void splitNext() throws IOException {
+        int bucket = split;
+        int round = INITIAL_BUCKETS << level;
+        List<String[]> staying = new ArrayList<>();
+        List<String[]> moving = new ArrayList<>();
+        List<Integer> oldOverflow = new ArrayList<>();
+        long position = bucketPosition(bucket);
+        while (true) {
+            ByteBuffer page = readPage(position);
+            for (int i = 0; i < page.getShort(0); i++) {
+                String name = name(page, i);
+                int hash = hash(name);
+                if (hash % round != bucket) {
+                    continue; // a stale copy left by a split cut short
+                }
+                (hash % (round << 1) == bucket ? staying : moving).add(new String[]{name, password(page, i)});
+            }
+            int next = page.getInt(4);
+            if (next == 0) {
+                break;
+            }
+            oldOverflow.add(next);
+            position = -next;
+        }
+        writeChain(bucket + round, moving);
+        split++;
+        if (split == round) { // every bucket of this round is split
+            level++;
+            split = 0;
+        }
+        writeHeader();
+        sync(); // the moved records are found in the new bucket from here on
+        writeChain(bucket, staying);
+        sync(); // the old overflow pages are no longer reachable
+        for (int page : oldOverflow) { // hand them back for reuse
+            ByteBuffer free = ByteBuffer.allocate(PAGE);
+            free.putInt(4, freeOverflow);
+            writePage(-page, free);
+            freeOverflow = page;
+        }
+    }
+
+    /**
+     * writeChain
+     * @description writes records as a bucket's whole chain: the overflow pages on fresh pages
+     * first, then the bucket's first page, whose single write switches to the new chain
+     */
+    private void writeChain(int bucket, List<String[]> records) throws IOException {
+        int pages = Math.max(1, (records.size() + SLOTS - 1) / SLOTS);
+        int next = 0;
+        for (int p = pages - 1; p >= 0; p--) {
+            ByteBuffer page = ByteBuffer.allocate(PAGE);
+            int from = p * SLOTS;
+            int to = Math.min(records.size(), from + SLOTS);
+            for (int i = from; i < to; i++) {
+                putRecord(page, i - from, records.get(i)[0], records.get(i)[1]);
+            }
+            page.putShort(0, (short) (to - from));
+            page.putInt(4, next);
+            if (p > 0) {
+                next = ++overflowPages; // never a free page, whose link the saved header may still follow
+                writePage(-next, page);
+            } else {
+                sync(); // the chain is on disk before the first page points at it
+                writePage(bucketPosition(bucket), page);
+            }
+        }
+    }
+
+    private int allocateOverflow() throws IOException {
+        if (freeOverflow != 0) {
+            int page = freeOverflow;
+            freeOverflow = readPage(-page).getInt(4);
+            ByteBuffer empty = ByteBuffer.allocate(PAGE);
+            writePage(-page, empty);
+            return page;
+        }
+        return ++overflowPages;
+    }
+
+    private int bucketCount() {
+        return (INITIAL_BUCKETS << level) + split;
+    }
+
+    private static int hash(String name) {
+        int hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & Integer.MAX_VALUE;
+    }
+
+    private int bucketOf(String name) {
+        int hash = hash(name);
+        int bucket = hash % (INITIAL_BUCKETS << level);
+        if (bucket < split) { // already split this round
+            bucket = hash % (INITIAL_BUCKETS << (level + 1));
+        }
+        return bucket;
+    }
+
+    private static long bucketPosition(int bucket) {
+        return (long) (bucket + 1) * PAGE; // page 0 is the header
+    }
+
+    private ByteBuffer readPage(long position) throws IOException {
+        FileChannel channel = position >= 0 ? buckets : overflow;
+        long offset = position >= 0 ? position : -position * PAGE;
+        ByteBuffer page = ByteBuffer.allocate(PAGE);
+        while (page.hasRemaining()) {
+            if (channel.read(page, offset + page.position()) < 0) {
+                break; // past the end of the file: the rest of the page is empty
+            }
+        }
+        page.clear();
+        return page;
+    }
+
+    private void writePage(long position, ByteBuffer page) throws IOException {
+        FileChannel channel = position >= 0 ? buckets : overflow;
+        long offset = position >= 0 ? position : -position * PAGE;
+        ByteBuffer bytes = page.duplicate().clear();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, offset + bytes.position());
+        }
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = readPage(0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a user database");
+        }
+        level = header.getInt(8);
+        split = header.getInt(12);
+        overflowPages = header.getInt(16);
+        freeOverflow = header.getInt(20);
+        count = header.getLong(24);
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(level).putInt(split)
+                .putInt(overflowPages).putInt(freeOverflow).putLong(count);
+        writePage(0, header);
+    }
+
+    private void sync() throws IOException {
+        if (fsync) {
+            overflow.force(false);
+            buckets.force(false);
+        }
+    }
+
+    private void cache(String name, String password) {
+        synchronized (hot) {
+            hot.put(name, password);
+        }
+    }
+
+    private static boolean fits(String field) {
+        return field.getBytes(StandardCharsets.UTF_8).length <= MAX_FIELD;
+    }
+
+    private static void putRecord(ByteBuffer page, int index, String name, String password) {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        byte[] p = password.getBytes(StandardCharsets.UTF_8);
+        int at = PAGE_HEADER + index * RECORD;
+        page.put(at, (byte) n.length);
+        page.put(at + 1, n);
+        page.put(at + 1 + MAX_FIELD, (byte) p.length);
+        page.put(at + 2 + MAX_FIELD, p);
+    }
+
+    private static void removeRecord(ByteBuffer page, int index) {
+        int last = page.getShort(0) - 1;
+        if (index != last) { // move the last record into the gap
+            page.put(PAGE_HEADER + index * RECORD, page, PAGE_HEADER + last * RECORD, RECORD);
+        }
+        page.putShort(0, (short) last);
+    }
+
+    private static boolean nameEquals(ByteBuffer page, int index, byte[] name) {
+        int at = PAGE_HEADER + index * RECORD;
+        if (page.get(at) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (page.get(at + 1 + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String name(ByteBuffer page, int index) {
+        int at = PAGE_HEADER + index * RECORD;
+        return new String(page.array(), at + 1, page.get(at), StandardCharsets.UTF_8);
+    }
+
+    private static String password(ByteBuffer page, int index) {
+        int at = PAGE_HEADER + index * RECORD + 1 + MAX_FIELD;
+        return new String(page.array(), at + 1, page.get(at), StandardCharsets.UTF_8);
+    }
+
+}
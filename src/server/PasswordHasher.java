@@ -0,0 +1,244 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * @description Hashes and checks passwords on a small pool of its own, so a burst of logins
+ * can't tie up the threads that carry chat traffic. New hashes are salted PBKDF2, stored as
+ * "pbkdf2$iterations$salt$hash". Old unsalted MD5 hashes are still accepted, and a successful
+ * check hands back a PBKDF2 hash to store in their place. The pool's queue is bounded: when it
+ * is full the request is refused at once and the client is told to try again. Renames in the
+ * user store, which may wait on the disk, run on the same pool.
+ */
+class PasswordHasher {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2$";
+    private static final int SALT_BYTES = 16;
+    private static final int KEY_BITS = 256;
+
+    private final ThreadPoolExecutor pool;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    // queue time is how long a request waited for a hashing thread
+    private final LongAdder hashed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+
+    /**
+     * @description the outcome of a password check
+     */
+    static final class Check {
+        final boolean matches;
+        final String upgrade; // a stronger hash to store, or null if the stored one is current
+
+        Check(boolean matches, String upgrade) {
+            this.matches = matches;
+            this.upgrade = upgrade;
+        }
+    }
+
+    PasswordHasher(int threads, int queueSize, int iterations) {
+        AtomicInteger count = new AtomicInteger();
+        this.iterations = iterations;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), task -> {
+                    Thread thread = new Thread(task, "hasher-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * hash
+     * @description hashes a new password on the pool
+     * @param done called on a hashing thread with the hash to store, or null if hashing failed
+     * @return false if the pool is too busy to take it
+     */
+    boolean hash(String password, Consumer<String> done) {
+        return submit(() -> pbkdf2(password, salt(), iterations), done);
+    }
+
+    /**
+     * verify
+     * @description checks a password against a stored hash on the pool
+     * @param done called on a hashing thread with the result, or null if checking failed
+     * @return false if the pool is too busy to take it
+     */
+    boolean verify(String password, String stored, Consumer<Check> done) {
+        return submit(() -> check(password, stored), done);
+    }
+
+    /**
+     * store
+     * @description runs a change to the user store on the pool, so its disk waits stay off
+     * the connection threads as hashing does
+     * @return false if the pool is too busy to take it
+     */
+    boolean store(Runnable change) {
+        try {
+            pool.execute(() -> {
+                try {
+                    change.run();
+                } catch (RuntimeException e) {
+                    Log.error("hasher.store.failed", e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * submit
+     * @description runs work on the pool and always hands its result to done, null if the
+     * work threw, so whoever waits for it gets an answer
+     */
+    private <T> boolean submit(Supplier<T> work, Consumer<T> done) {
+        long queued = System.nanoTime();
+        try {
+            pool.execute(() -> {
+                long waited = System.nanoTime() - queued;
+                queueNanos.add(waited);
+                maxQueueNanos.accumulateAndGet(waited, Math::max);
+                hashed.increment();
+                T result = null;
+                try {
+                    result = work.get();
+                } catch (RuntimeException e) {
+                    Log.error("hasher.task.failed", e);
+                }
+                try {
+                    done.accept(result);
+                } catch (RuntimeException e) { // the pool thread lives on, so say what went wrong
+                    Log.error("hasher.callback.failed", e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    /**
+     * check
+     * @description checks a password against a stored hash. A PBKDF2 hash that can't be
+     * parsed matches nothing
+     */
+    private Check check(String password, String stored) {
+        if (stored.startsWith(PREFIX)) {
+            String[] parts = stored.split("\\$");
+            int rounds;
+            byte[] salt;
+            try {
+                if (parts.length != 4) {
+                    throw new IllegalArgumentException(parts.length + " fields");
+                }
+                rounds = Integer.parseInt(parts[1]);
+                salt = Base64.getDecoder().decode(parts[2]);
+                if (rounds < 1 || salt.length == 0) {
+                    throw new IllegalArgumentException("no rounds or salt");
+                }
+            } catch (IllegalArgumentException e) { // NumberFormatException too
+                Log.warn("hasher.hash.malformed", e);
+                return new Check(false, null);
+            }
+            boolean matches = MessageDigest.isEqual(
+                    pbkdf2(password, salt, rounds).getBytes(StandardCharsets.US_ASCII),
+                    stored.getBytes(StandardCharsets.US_ASCII));
+            // raising the cost upgrades older hashes as their users log in
+            return new Check(matches, matches && rounds < iterations ? pbkdf2(password, salt(), iterations) : null);
+        }
+        boolean matches = MessageDigest.isEqual(
+                md5(password).getBytes(StandardCharsets.US_ASCII),
+                stored.getBytes(StandardCharsets.US_ASCII));
+        return new Check(matches, matches ? pbkdf2(password, salt(), iterations) : null);
+    }
+
+    private byte[] salt() {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    static String pbkdf2(String password, byte[] salt, int rounds) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, rounds, KEY_BITS);
+        try {
+            byte[] key = SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            Base64.Encoder base64 = Base64.getEncoder();
+            return PREFIX + rounds + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not found!", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * md5
+     * @author Jonah Shapiro
+     * @description creates an MD5-encrypted string, the format of hashes stored before PBKDF2
+     */
+    static String md5(String md5) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] array = md.digest(md5.getBytes());
+            StringBuilder sb = new StringBuilder();
+            for (byte anArray : array) {
+                sb.append(Integer.toHexString((anArray & 0xFF) | 0x100).substring(1, 3));
+            }
+            return sb.toString();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not found!", e);
+        }
+    }
+
+    long hashed() {
+        return hashed.sum();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * meanQueueMillis
+     * @description the average time a request waited for a hashing thread
+     */
+    double meanQueueMillis() {
+        long count = hashed.sum();
+        return count == 0 ? 0 : queueNanos.sum() / 1e6 / count;
+    }
+
+    double maxQueueMillis() {
+        return maxQueueNanos.get() / 1e6;
+    }
+
+    int queued() {
+        return pool.getQueue().size();
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+}
@@ -0,0 +1,314 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @description An encoded, newline-terminated line ready for the wire. A broadcast is encoded
+ * once and the same Payload is queued for every recipient, so it must never change.
+ * A payload can also be a run of lines already in a file, such as replayed history, which is
+ * sent straight from the file without being copied through the heap. A group holds the
+ * payloads of one frame that must be queued, and dropped, as one.
+ *
+ * A region is released once it has been sent or thrown away, which lets its file be closed.
+ */
+final class Payload {
+
+    private final byte[] bytes; // null for a file region or a group
+    private final FileChannel file;
+    private final long position;
+    private final int count;
+    private final Payload[] parts; // null unless a group
+    private final AtomicReference<Runnable> release; // run once by release(), null if nothing holds a file
+    private volatile Payload chatFrame; // this line as a Wire frame, built when first needed
+
+    private Payload(byte[] bytes) {
+        this.bytes = bytes;
+        this.file = null;
+        this.position = 0;
+        this.count = bytes.length;
+        this.parts = null;
+        this.release = null;
+    }
+
+    private Payload(FileChannel file, long position, int count, Runnable release) {
+        this.bytes = null;
+        this.file = file;
+        this.position = position;
+        this.count = count;
+        this.parts = null;
+        this.release = release == null ? null : new AtomicReference<>(release);
+    }
+
+    private Payload(Payload[] parts) {
+        this.bytes = null;
+        this.file = null;
+        this.position = 0;
+        int total = 0;
+        for (Payload part : parts) {
+            total += part.count;
+        }
+        this.count = total;
+        this.parts = parts;
+        this.release = null;
+    }
+
+    /**
+     * region
+     * @description whole lines already encoded in a file. The file must stay open and those
+     * bytes unchanged until every recipient has sent them
+     */
+    static Payload region(FileChannel file, long position, int count) {
+        return new Payload(file, position, count, null);
+    }
+
+    /**
+     * region
+     * @description like region(file, position, count), for a single recipient. The region
+     * must be released once sent or thrown away; release then tells the file's owner it may
+     * close the file
+     */
+    static Payload region(FileChannel file, long position, int count, Runnable release) {
+        return new Payload(file, position, count, release);
+    }
+
+    /**
+     * line
+     * @description encodes one line of text straight into the payload's array, without an
+     * intermediate String or byte[] copy
+     */
+    static Payload line(CharSequence text) {
+        byte[] bytes = new byte[utf8Length(text) + 1];
+        int n = encode(text, bytes, 0);
+        bytes[n] = '\n';
+        return new Payload(bytes);
+    }
+
+    /**
+     * frame
+     * @description encodes text as one Wire frame
+     */
+    static Payload frame(int opcode, CharSequence text) {
+        int size = utf8Length(text) + 1;
+        byte[] bytes = new byte[Wire.varintSize(size) + size];
+        int n = Wire.putVarint(bytes, 0, size);
+        bytes[n++] = (byte) opcode;
+        encode(text, bytes, n);
+        return new Payload(bytes);
+    }
+
+    /**
+     * frame
+     * @description wraps bytes in a Wire frame, deflating them if asked and worth it
+     */
+    static Payload frame(int opcode, byte[] payload, int length, boolean compress) {
+        if (compress && length >= Wire.MIN_COMPRESS) {
+            payload = Wire.deflate(payload, length);
+            length = payload.length;
+            opcode |= Wire.COMPRESSED;
+        }
+        byte[] bytes = new byte[Wire.varintSize(length + 1) + length + 1];
+        int n = Wire.putVarint(bytes, 0, length + 1);
+        bytes[n++] = (byte) opcode;
+        System.arraycopy(payload, 0, bytes, n, length);
+        return new Payload(bytes);
+    }
+
+    /**
+     * header
+     * @description the start of a Wire frame whose payload follows as separate payloads,
+     * such as file regions
+     */
+    static Payload header(int opcode, int payloadLength) {
+        byte[] bytes = new byte[Wire.varintSize(payloadLength + 1) + 1];
+        int n = Wire.putVarint(bytes, 0, payloadLength + 1);
+        bytes[n] = (byte) opcode;
+        return new Payload(bytes);
+    }
+
+    /**
+     * group
+     * @description payloads that must reach the client together, such as a frame header and
+     * the regions that are its payload. OutboundQueue keeps or drops them as one and hands
+     * them to the writer one by one
+     */
+    static Payload group(List<Payload> parts) {
+        return new Payload(parts.toArray(new Payload[0]));
+    }
+
+    /**
+     * asChatFrame
+     * @description the same line as a Wire CHAT frame, for sessions using frames. It is built
+     * the first time it's needed and then shared like the line
+     */
+    Payload asChatFrame() {
+        Payload framed = this.chatFrame;
+        if (framed == null) { // two threads may both build it; either copy will do
+            int size = bytes.length; // the line without its newline, plus the opcode
+            byte[] frame = new byte[Wire.varintSize(size) + size];
+            int n = Wire.putVarint(frame, 0, size);
+            frame[n++] = Wire.CHAT;
+            System.arraycopy(bytes, 0, frame, n, bytes.length - 1);
+            framed = new Payload(frame);
+            this.chatFrame = framed;
+        }
+        return framed;
+    }
+
+    private static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                size += 1; // a lone surrogate is replaced by '?', as String.getBytes() does
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * encode
+     * @return where the encoded text ends
+     */
+    private static int encode(CharSequence text, byte[] bytes, int n) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[n++] = (byte) (0xC0 | c >> 6);
+                bytes[n++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                bytes[n++] = (byte) (0xF0 | cp >> 18);
+                bytes[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                bytes[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                bytes[n++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                bytes[n++] = '?';
+            } else {
+                bytes[n++] = (byte) (0xE0 | c >> 12);
+                bytes[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[n++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return n;
+    }
+
+    int length() {
+        return count;
+    }
+
+    boolean isRegion() {
+        return file != null;
+    }
+
+    boolean isGroup() {
+        return parts != null;
+    }
+
+    Payload[] parts() {
+        return parts;
+    }
+
+    /**
+     * release
+     * @description lets go of the file a region was read from, or of every region in a group.
+     * Only the first call counts, so a writer may release whatever it is unsure about
+     */
+    void release() {
+        if (parts != null) {
+            for (Payload part : parts) {
+                part.release();
+            }
+        } else if (release != null) {
+            Runnable r = release.getAndSet(null);
+            if (r != null) {
+                r.run();
+            }
+        }
+    }
+
+    /**
+     * transferTo
+     * @description writes what the channel will take, starting offset bytes in. A file region
+     * goes with FileChannel.transferTo(), so the kernel copies it straight to the socket
+     * @return the number of bytes written
+     */
+    long transferTo(long offset, WritableByteChannel target) throws IOException {
+        if (bytes == null) {
+            return file.transferTo(position + offset, count - offset, target);
+        }
+        return target.write(ByteBuffer.wrap(bytes, (int) offset, count - (int) offset));
+    }
+
+    /**
+     * buffer
+     * @description a buffer of its own over a line held in memory, for a gathering write
+     */
+    ByteBuffer buffer() {
+        if (bytes == null) {
+            throw new IllegalStateException("File regions are sent with transferTo()");
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * writeTo
+     * @description writes a line held in memory to a stream; file regions use transferTo()
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (bytes == null) {
+            throw new IllegalStateException("File regions are sent with transferTo()");
+        }
+        out.write(bytes);
+    }
+
+    /**
+     * copyTo
+     * @description copies a payload held in memory into a buffer, e.g. a mapped log segment
+     */
+    void copyTo(ByteBuffer target) {
+        if (bytes == null) {
+            throw new IllegalStateException("File regions are read with readTo()");
+        }
+        target.put(bytes);
+    }
+
+    /**
+     * readTo
+     * @description copies any payload into a buffer, reading a file region from its file
+     */
+    void readTo(ByteBuffer target) throws IOException {
+        if (bytes != null) {
+            target.put(bytes);
+            return;
+        }
+        int start = target.position();
+        while (target.position() - start < count) {
+            ByteBuffer window = target.duplicate().limit(start + count);
+            int n = file.read(window, position + target.position() - start);
+            if (n < 0) {
+                throw new IOException("File region cut short");
+            }
+            target.position(target.position() + n);
+        }
+    }
+
+}
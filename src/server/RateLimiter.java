@@ -0,0 +1,130 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @description Token buckets that limit how fast logged in clients may send: one per session,
+ * and one shared by every session from the same address, so opening more connections doesn't
+ * buy more throughput. A line takes a token from both; a bucket refills at its rate and holds
+ * at most its burst, so short bursts pass and a steady flood is cut to the rate.
+ *
+ * An address's bucket lives while it has sessions, so the map holds only connected addresses.
+ */
+class RateLimiter {
+
+    private final double sessionRate;
+    private final double sessionBurst;
+    private final double addressRate;
+    private final double addressBurst;
+    private final ConcurrentHashMap<InetAddress, Address> addresses = new ConcurrentHashMap<>();
+
+    RateLimiter(ServerConfig config) {
+        this.sessionRate = config.rateLimit;
+        this.sessionBurst = Math.max(1, config.rateBurst);
+        this.addressRate = config.ipRateLimit;
+        this.addressBurst = Math.max(1, config.ipRateBurst);
+    }
+
+    /**
+     * open
+     * @description the limit for a new session from an address, which close() must be given
+     * back once the session has gone
+     */
+    Limit open(InetAddress address) {
+        Bucket session = sessionRate > 0 ? new Bucket(sessionRate, sessionBurst) : null;
+        if (addressRate <= 0 || address == null) {
+            return new Limit(null, session, null);
+        }
+        Address shared = addresses.compute(address, (key, old) -> {
+            Address entry = old != null ? old : new Address(new Bucket(addressRate, addressBurst));
+            entry.sessions++;
+            return entry;
+        });
+        return new Limit(address, session, shared.bucket);
+    }
+
+    void close(Limit limit) {
+        if (limit.address != null) {
+            addresses.computeIfPresent(limit.address, (key, entry) -> --entry.sessions == 0 ? null : entry);
+        }
+    }
+
+    /**
+     * @description what one session may send
+     */
+    static final class Limit {
+        private final InetAddress address; // null when addresses aren't limited
+        private final Bucket session; // null when sessions aren't limited
+        private final Bucket shared;
+
+        Limit(InetAddress address, Bucket session, Bucket shared) {
+            this.address = address;
+            this.session = session;
+            this.shared = shared;
+        }
+
+        /**
+         * allow
+         * @description takes a token for one line from both buckets, or from neither
+         * @return false if the session or its address is over its rate
+         */
+        boolean allow() {
+            if (session != null && !session.take()) {
+                return false;
+            }
+            if (shared != null && !shared.take()) {
+                if (session != null) {
+                    session.refund(); // a busy neighbour on the address doesn't spend this session's budget
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @description the shared bucket of an address and how many sessions use it, only
+     * changed inside the map's compute calls
+     */
+    private static final class Address {
+        final Bucket bucket;
+        int sessions;
+
+        Address(Bucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * @description a token bucket, refilled lazily from the clock when a token is asked for
+     */
+    static final class Bucket {
+        private final double perNano;
+        private final double burst;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        Bucket(double perSecond, double burst) {
+            this.perNano = perSecond / 1e9;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        synchronized boolean take() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) * perNano);
+            refilled = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(burst, tokens + 1);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * @description A chat room: the sessions in it, its history, and the fan-out shard that
+ * delivers its messages. Every message of a room goes through the same single-threaded shard,
+ * so members see them in the order they were published, and the cost of a broadcast depends
+ * only on the size of the room.
+ */
+class Room {
+
+    static final String LOBBY = "lobby"; // where everyone starts, never removed
+
+    private final String name;
+    private final Set<ClientSession> members = ConcurrentHashMap.newKeySet();
+    private final Executor shard;
+    private final MessageLog history; // null when history is off or unavailable
+    private final RosterLog roster;
+
+    Room(String name, Executor shard, MessageLog history, int presenceHistory) {
+        this.name = name;
+        this.shard = shard;
+        this.history = history;
+        this.roster = new RosterLog(name, presenceHistory);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * publish
+     * @description hands a message to the room's shard, which logs it and queues it for every
+     * member. Returns at once. The time from here to the last member is recorded once per
+     * message, not per member
+     */
+    void publish(Payload line) {
+        long published = System.nanoTime();
+        try {
+            shard.execute(() -> {
+                if (history != null) {
+                    history.append(line);
+                }
+                int delivered = 0;
+                for (ClientSession member : members) {
+                    member.deliver(line);
+                    delivered++;
+                }
+                long fanout = System.nanoTime() - published;
+                Metrics.SERVER.fanoutSeconds.record(fanout);
+                ServerEvents.Broadcast event = new ServerEvents.Broadcast(); // optimized away while no recording enables it
+                if (event.isEnabled()) {
+                    event.room = name;
+                    event.members = delivered;
+                    event.fanout = fanout;
+                    event.commit();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down
+        }
+    }
+
+    /**
+     * publishPresence
+     * @description sends the roster changes collected since the last call to every member
+     * using frames, as one frame each. Runs on the shard, in order with the room's messages
+     */
+    void publishPresence() {
+        try {
+            shard.execute(() -> {
+                String deltas = roster.takeBatch();
+                if (deltas == null) {
+                    return;
+                }
+                byte[] bytes = deltas.getBytes(StandardCharsets.UTF_8);
+                Payload plain = Payload.frame(Wire.PRESENCE, bytes, bytes.length, false);
+                Payload deflated = null;
+                for (ClientSession member : members) {
+                    if (member.compresses() && deflated == null) {
+                        deflated = Payload.frame(Wire.PRESENCE, bytes, bytes.length, true);
+                    }
+                    member.deliverPresence(plain, deflated);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down
+        }
+    }
+
+    RosterLog roster() {
+        return roster;
+    }
+
+    MessageLog history() {
+        return history;
+    }
+
+    Set<ClientSession> members() {
+        return members;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+}
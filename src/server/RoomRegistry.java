@@ -0,0 +1,251 @@
+package server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @description The open rooms and the fan-out shards that serve them. A room exists while
+ * someone is in it (the lobby always exists); joining and leaving are atomic per room, so a
+ * session is never added to a room that is being dropped. Each new room is given the next
+ * shard in turn, so a busy room holds up only the rooms that share its shard.
+ *
+ * A room's history is opened with the room and closed a while after the room is dropped, once
+ * lines still being delivered have been logged and replays already queued have been sent; a
+ * room joined again later reopens it and carries on from where it was. At most --history-open
+ * histories are open at once, so creating rooms can't map files without end.
+ *
+ * Joins, leaves and renames are also recorded as roster deltas, local or from other nodes.
+ * The first delta of a batch starts a timer, and when it fires the room publishes the whole
+ * batch, so a burst of reconnects costs each member one frame rather than one per change.
+ */
+class RoomRegistry {
+
+    private static final long HISTORY_LINGER_SECONDS = 30; // a dropped room's history stays open this long
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MessageLog> histories = new ConcurrentHashMap<>();
+    private final ExecutorService[] shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final ScheduledExecutorService presence; // publishes batches of roster deltas
+    private final ServerConfig config;
+
+    RoomRegistry(ServerConfig config) {
+        this.config = config;
+        this.shards = new ExecutorService[config.fanoutThreads];
+        for (int i = 0; i < shards.length; i++) {
+            String name = "fanout-" + i;
+            this.shards[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.presence = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.rooms.put(Room.LOBBY, newRoom(Room.LOBBY));
+    }
+
+    /**
+     * isValidName
+     * @description room names double as directory names, so they are kept short and plain
+     */
+    static boolean isValidName(String name) {
+        return name.matches("[A-Za-z0-9_-]{1,32}");
+    }
+
+    /**
+     * join
+     * @description moves a session into a room, leaving the one it was in
+     * @return the room
+     */
+    Room join(ClientSession session, String name) {
+        leave(session);
+        Room room = rooms.compute(name, (key, existing) -> {
+            Room joined = existing != null ? existing : newRoom(key);
+            joined.members().add(session);
+            return joined;
+        });
+        session.setRoom(room);
+        presence(room, "+" + session.getName());
+        return room;
+    }
+
+    /**
+     * leave
+     * @description takes a session out of its room, dropping the room if it is now empty
+     */
+    void leave(ClientSession session) {
+        Room room = session.getRoom();
+        if (room == null) {
+            return;
+        }
+        session.setRoom(null);
+        Room left = rooms.computeIfPresent(room.getName(), (key, existing) -> {
+            existing.members().remove(session);
+            return existing.size() == 0 && !key.equals(Room.LOBBY) ? null : existing;
+        });
+        if (left != null) { // a room that was dropped has nobody to tell
+            presence(left, "-" + session.getName());
+        } else {
+            closeHistoryLater(room.getName());
+        }
+    }
+
+    /**
+     * renamed
+     * @description records a session's new name in its room's roster
+     */
+    void renamed(ClientSession session, String old) {
+        Room room = session.getRoom();
+        if (room != null) {
+            presence(room, "~" + old + " " + session.getName());
+        }
+    }
+
+    /**
+     * presence
+     * @description records a roster delta for a room, such as one from another node. Rooms
+     * nobody here is in are skipped
+     */
+    void presence(String name, String delta) {
+        Room room = rooms.get(name);
+        if (room != null) {
+            presence(room, delta);
+        }
+    }
+
+    private void presence(Room room, String delta) {
+        if (room.roster().add(delta)) {
+            try {
+                presence.schedule(room::publishPresence, config.presenceBatchMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the server is shutting down
+            }
+        }
+    }
+
+    /**
+     * deliver
+     * @description publishes a line that another node sent to a room. If nobody here is in
+     * the room it is only added to the room's history
+     */
+    void deliver(String name, Payload line) {
+        boolean[] idle = new boolean[1];
+        rooms.compute(name, (key, room) -> { // so the history isn't closed while it is appended to
+            if (room != null) {
+                room.publish(line);
+            } else {
+                MessageLog history = history(key);
+                if (history != null) {
+                    history.append(line);
+                    idle[0] = true;
+                }
+            }
+            return room;
+        });
+        if (idle[0]) {
+            closeHistoryLater(name);
+        }
+    }
+
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    Collection<Room> rooms() {
+        return rooms.values();
+    }
+
+    private Room newRoom(String name) {
+        ExecutorService shard = shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)];
+        return new Room(name, shard, history(name), config.presenceHistory);
+    }
+
+    /**
+     * history
+     * @description opens a room's history, or finds it open. Called inside rooms.compute for
+     * the room, so it is never opened while closeHistory is closing it
+     * @return null if history is off, unavailable, or too many histories are open
+     */
+    private MessageLog history(String room) {
+        if (!config.history) {
+            return null;
+        }
+        if (histories.size() >= config.historyOpen && !histories.containsKey(room)) {
+            Log.warn("history.limit", "room", room);
+            return null;
+        }
+        return histories.computeIfAbsent(room, key -> {
+            try {
+                MessageLog history = MessageLog.open(config.dataDir + "/history/" + key, config.historySegmentBytes,
+                        config.historyBytes, config.historyAgeHours * 3_600_000L);
+                Log.info("history.loaded", "room", key, "lines", history.size());
+                return history;
+            } catch (IOException e) {
+                Log.error("history.unavailable", "room", key, e);
+                return null;
+            }
+        });
+    }
+
+    private void closeHistoryLater(String room) {
+        if (!histories.containsKey(room)) {
+            return;
+        }
+        try {
+            presence.schedule(() -> closeHistory(room), HISTORY_LINGER_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down, which closes every history
+        }
+    }
+
+    /**
+     * closeHistory
+     * @description closes a room's history unless the room is open again
+     */
+    private void closeHistory(String room) {
+        rooms.compute(room, (key, existing) -> {
+            if (existing == null) {
+                MessageLog history = histories.remove(key);
+                if (history != null) {
+                    history.close();
+                    Log.debug("history.closed", "room", key);
+                }
+            }
+            return existing;
+        });
+    }
+
+    /**
+     * shutdown
+     * @description stops the shards once the messages already published are delivered, then
+     * closes the histories
+     */
+    void shutdown() {
+        presence.shutdownNow();
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+        try {
+            for (ExecutorService shard : shards) {
+                shard.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (MessageLog history : histories.values()) {
+            history.close();
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * @description The versioned roster of one room. Every join, leave and rename is a delta with
+ * the next version: "+name", "-name" or "~old new". The latest deltas are kept so a client
+ * holding a recent version can catch up without fetching every name, and new deltas collect in
+ * a batch until the room publishes them.
+ *
+ * A version is written as a token, "room epoch version". The epoch is when this incarnation of
+ * the room was created, so versions from a room that emptied and was made again, or from
+ * before a restart, are never mistaken for current ones.
+ *
+ * A membership change is made before its delta is added, so a roster read after taking a
+ * token holds every change up to that version. It may hold later ones too; deltas can be
+ * applied twice without harm, so clients need not care.
+ */
+class RosterLog {
+
+    private final String room;
+    private final long epoch = System.currentTimeMillis();
+    private final int capacity;
+    private final ArrayDeque<String> recent = new ArrayDeque<>(); // the latest deltas, oldest first
+    private final StringBuilder batch = new StringBuilder(); // deltas not yet published
+    private long version;
+
+    RosterLog(String room, int capacity) {
+        this.room = room;
+        this.capacity = capacity;
+    }
+
+    /**
+     * add
+     * @description records a delta under the next version
+     * @return true if it starts a new batch, which the caller should arrange to publish
+     */
+    synchronized boolean add(String delta) {
+        version++;
+        recent.addLast(delta);
+        if (recent.size() > capacity) {
+            recent.removeFirst();
+        }
+        boolean first = batch.length() == 0;
+        batch.append('\n').append(delta);
+        return first;
+    }
+
+    /**
+     * takeBatch
+     * @description the deltas added since the last call, after the current token
+     * @return null if there are none
+     */
+    synchronized String takeBatch() {
+        if (batch.length() == 0) {
+            return null;
+        }
+        String deltas = token() + batch;
+        batch.setLength(0);
+        return deltas;
+    }
+
+    synchronized String token() {
+        return room + " " + epoch + " " + version;
+    }
+
+    /**
+     * since
+     * @description the deltas after a client's token, after the current token
+     * @return null if the token is from another room or epoch, or too old for the deltas kept
+     */
+    synchronized String since(String token) {
+        String[] parts = token.split(" ");
+        long from;
+        try {
+            if (parts.length != 3 || !parts[0].equals(room) || Long.parseLong(parts[1]) != epoch) {
+                return null;
+            }
+            from = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        long oldest = version - recent.size(); // the version before the first delta kept
+        if (from < oldest || from > version) {
+            return null;
+        }
+        StringBuilder deltas = new StringBuilder(token());
+        Iterator<String> it = recent.iterator();
+        for (long v = oldest + 1; it.hasNext(); v++) {
+            String delta = it.next();
+            if (v > from) {
+                deltas.append('\n').append(delta);
+            }
+        }
+        return deltas.toString();
+    }
+
+}
@@ -1,15 +1,28 @@
 package server;
 
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.IOException;
-import java.io.PrintWriter;
 
 /**
  * @author Jonah Shapiro
@@ -17,41 +30,129 @@ import java.io.PrintWriter;
  */
 public class Server {
 
-    private int numClients; // keeps track of the number of connected clients
+    private ServerConfig config; // port and connection mode
+
+    private Semaphore connectionPermits; // one permit per connection allowed by config.maxConnections
+
+    private Admission admission; // turns connections away while the server is overloaded
+
+    private RateLimiter limiter; // how fast each session and address may send
 
     private ServerSocket listener; // the listening socket
 
     private boolean running; // boolean for the mail loop
 
-    private HashMap<String, String> users; // name, password
+    private UserStore users; // name, password
+
+    private PasswordHasher hasher; // hashes passwords and renames accounts off the connection threads
+
+    private SessionRegistry clients; // name, session
+
+    private AtomicReference<BeeTranslator> translator; // english to bee, swapped when the dictionary changes
+
+    private DictionaryWatcher dictionaryWatcher; // reloads the dictionary when d2.txt changes
+
+    private TranslationCache translations; // recently translated messages
+
+    private RoomRegistry rooms; // the open rooms, each with its members and history
+
+    private Cluster cluster; // the other nodes, empty when not clustered
 
-    private HashMap<String, ClientSession> clients; // name, session
+    private MetricsEndpoint metrics; // serves Metrics.SERVER, null unless config.metricsPort is set
 
-    private HashMap<String, String> beeDictionary; // english, bee
+    private static final ThreadLocal<StringBuilder> LINE = ThreadLocal.withInitial(() -> new StringBuilder(256)); // reused by send()
 
-    private ArrayList<ClientHandler> threads; // a list of clientHandler threads. Necessary for
+    private Set<ClientHandler> threads; // the connected clientHandlers. Necessary for
     // kicking users.
 
+    private IoLoop[] loops; // selector threads, only used in NIO mode
+
+    private int nextLoop; // round robin index into loops
+
+    private ExecutorService handlers; // runs ClientHandlers in thread and virtual mode
+
+    private ThreadFactory writers; // makes the writer thread of each blocking session
+
     /**
      * @author Jonah Shapiro
      */
-    private Server() { // initialize the server
-        this.numClients = 0;
+    private Server(ServerConfig config) { // initialize the server
+        this.config = config;
+        this.connectionPermits = new Semaphore(config.maxConnections);
+        this.limiter = new RateLimiter(config);
         try {
-            int PORT = 5000;
-            this.listener = new ServerSocket(PORT); // create the server socket
+            // the socket is opened through a channel so NIO mode can take over accepted connections
+            this.listener = ServerSocketChannel.open().socket();
+            this.listener.bind(new InetSocketAddress(config.port)); // create the server socket
             // the following code initializes the collections
-            this.clients = new HashMap<>();
-            this.users = new HashMap<>();
-            this.beeDictionary = new HashMap<>();
-            this.threads = new ArrayList<>();
+            this.clients = new SessionRegistry();
+            this.threads = ConcurrentHashMap.newKeySet();
             readDictionary(); // read the dictionary for the bee translation
+            this.translations = new TranslationCache(config.cacheChars);
             readUsers(); // read the users
+            this.hasher = new PasswordHasher(config.hashThreads, config.hashQueue, config.hashIterations);
+            this.rooms = new RoomRegistry(config); // opens the lobby and its history
+            this.cluster = new Cluster(config, clients, rooms, users);
+            this.cluster.start(); // listen for peers and connect to them
+            registerMetrics();
+            this.admission = new Admission(config, () -> queueDepths()[0]);
+            this.admission.start();
+            if (config.metricsPort > 0) {
+                this.metrics = new MetricsEndpoint(config.metricsPort, Metrics.SERVER);
+                this.metrics.start();
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("server.start.failed", e);
         }
     }
 
+    /**
+     * registerMetrics
+     * @description adds what the server's parts already count to Metrics.SERVER, and the
+     * gauges, which are read only when scraped
+     */
+    private void registerMetrics() {
+        Metrics m = Metrics.SERVER;
+        m.gauge("bee_users_online", "Users logged in on this node", clients::size);
+        m.gauge("bee_rooms", "Open rooms", () -> rooms.rooms().size());
+        m.gauge("bee_outbound_queued", "Payloads queued for clients, all sessions together", () -> queueDepths()[0]);
+        m.gauge("bee_outbound_queue_max", "Payloads queued for the client furthest behind", () -> queueDepths()[1]);
+        m.counter("bee_payloads_sent_total", "Payloads handed to client sockets", ClientSession.WRITES::messages);
+        m.counter("bee_write_calls_total", "Write calls made to client sockets", ClientSession.WRITES::writes);
+        m.counter("bee_bytes_out_total", "Bytes written to clients", ClientSession.WRITES::bytes);
+        m.counter("bee_translation_cache_hits_total", "Messages whose translation was cached", translations::hits);
+        m.counter("bee_translation_cache_misses_total", "Messages translated afresh", translations::misses);
+        m.counter("bee_hashes_total", "Passwords hashed or checked", hasher::hashed);
+        m.counter("bee_hashes_refused_total", "Logins and sign ups refused because hashing was behind", hasher::rejected);
+        m.gauge("bee_hash_queue", "Passwords waiting for a hashing thread", hasher::queued);
+        m.counter("bee_log_dropped_total", "Log records dropped because the writer was behind", Log::dropped);
+        ServerEvents.register(() -> {
+            ServerEvents.Stats stats = new ServerEvents.Stats();
+            long[] depths = queueDepths();
+            stats.connections = m.connectionsActive.sum();
+            stats.queued = depths[0];
+            stats.maxQueue = depths[1];
+            stats.bytesIn = m.bytesIn.sum();
+            stats.bytesOut = ClientSession.WRITES.bytes();
+            stats.commit();
+        });
+    }
+
+    /**
+     * queueDepths
+     * @description the payloads queued for every client together, and for the one furthest behind
+     */
+    private long[] queueDepths() {
+        long total = 0;
+        long max = 0;
+        for (ClientSession session : clients.sessions()) {
+            int size = session.outbound().size();
+            total += size;
+            max = Math.max(max, size);
+        }
+        return new long[] {total, max};
+    }
+
     /**
      * readDictionary
      *
@@ -59,15 +160,20 @@ public class Server {
      * @description reads the bee translation dictionary
      */
     private void readDictionary() {
+        this.translator = new AtomicReference<>();
         try {
-            BufferedReader in = new BufferedReader(new FileReader(new File("src/server/d2.txt")));
-            while (in.ready()) {
-                String[] curr = in.readLine().split(":");
-                this.beeDictionary.put(curr[0], curr[1]);
-            }
-            in.close();
+            this.translator.set(new BeeTranslator(BeeDictionary.open("src/server/d2.txt"), BeeDictionary.Direction.TO_BEE, true));
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("dictionary.unavailable", "file", "src/server/d2.txt", e);
+            this.translator.set(new BeeTranslator(BeeDictionary.empty(), BeeDictionary.Direction.TO_BEE, true));
+        }
+        if (config.reloadDictionary) {
+            this.dictionaryWatcher = new DictionaryWatcher("src/server/d2.txt", this.translator);
+            try {
+                this.dictionaryWatcher.start();
+            } catch (IOException e) {
+                Log.warn("dictionary.watch.failed", e);
+            }
         }
     }
 
@@ -75,41 +181,32 @@ public class Server {
      * readUsers
      *
      * @author Jonah Shapiro
-     * @description Reads the users from users.dat
+     * @description Opens the user store in the data directory. The log store reads users.dat
+     * and replays the changes logged since; the paged store reads only its header, importing
+     * users.dat the first time
      */
     private void readUsers() {
         try {
-            BufferedReader in = new BufferedReader(new FileReader(new File("src/server/users.dat")));
-            while (in.ready()) {
-                String line = in.readLine();
-                String[] user = line.split(":");
-                this.users.put(user[0], user[1]);
+            if (config.userStore.equals("paged")) {
+                PagedUserStore paged = PagedUserStore.open(config.dataDir + "/users.db", false, config.userCache);
+                if (paged.isNew() && (Files.exists(Paths.get(config.dataDir + "/users.dat")) || Files.exists(Paths.get(config.dataDir + "/users.log")))) {
+                    LogUserStore old = LogUserStore.open(config.dataDir + "/users.dat", false);
+                    old.forEach((name, password) -> {
+                        if (!paged.create(name, password)) { // too long for a page record
+                            Log.warn("users.import.skipped", "name", name);
+                        }
+                    });
+                    old.close();
+                    Log.info("users.imported", "count", paged.size());
+                }
+                paged.close(); // forces the import to disk once rather than per account
+                this.users = PagedUserStore.open(config.dataDir + "/users.db", config.fsyncUsers, config.userCache);
+            } else {
+                this.users = LogUserStore.open(config.dataDir + "/users.dat", config.fsyncUsers);
             }
-            in.close();
-        } catch (IOException e) {
-            System.err.println("IO error!");
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * writeUsers
-     * @author Jonah Shapiro
-     * @description Writes the users to users.dat
-     */
-    private void writeUsers() {
-        try {
-            PrintWriter out = new PrintWriter("src/server/users.dat");
-            for (String name : users.keySet()) {
-                String user = "";
-                user += name + ":" + users.get(name);
-                out.println(user);
-            }
-            out.flush();
-            out.close();
+            Log.info("users.loaded", "count", this.users.size(), "store", config.userStore);
         } catch (IOException e) {
-            System.err.println("IO error!");
-            e.printStackTrace();
+            Log.error("users.unavailable", e);
         }
     }
 
@@ -119,77 +216,220 @@ public class Server {
      * @description runs the server
      */
     private void run() {
-        System.out.println("Server starting!");
+        Log.info("server.starting", "port", config.port, "mode", config.mode);
         this.running = true;
+        if (config.mode == ServerConfig.Mode.NIO) {
+            startLoops();
+        } else if (config.mode == ServerConfig.Mode.VIRTUAL) {
+            this.handlers = Executors.newVirtualThreadPerTaskExecutor();
+            this.writers = Thread.ofVirtual().name("writer-", 0).factory();
+        } else {
+            this.handlers = Executors.newCachedThreadPool();
+            this.writers = Thread.ofPlatform().name("writer-", 0).daemon().factory();
+        }
         while (running) {
-            int MAX_CONNECTIONS = 100;
-            if (numClients <= MAX_CONNECTIONS) { // check for maximum channel occupancy
-                try {
-                    Socket client = listener.accept();
-                    System.out.println("connect");
-                    ClientHandler t = new ClientHandler(client);
-                    new Thread(t).start();
+            try {
+                Socket client = listener.accept();
+                Log.debug("connection.accepted", "remote", client.getRemoteSocketAddress());
+                Metrics.SERVER.connectionsAccepted.increment();
+                String refusal = admit();
+                if (refusal != null) {
+                    reject(client, refusal);
+                    continue;
+                }
+                Metrics.SERVER.connectionsActive.increment();
+                RateLimiter.Limit limit = this.limiter.open(client.getInetAddress());
+                if (config.mode == ServerConfig.Mode.NIO) {
+                    ChannelSession session = new ChannelSession(client.getChannel(), config);
+                    ClientHandler t = new ClientHandler(session, limit);
                     this.threads.add(t);
-                    this.numClients++;
-                } catch (SocketException e) {
-                    if (!running) { // check if the socket was supposed to close
-                        System.out.println("Socket closed from server shutdown");
-                    } else {
-                        System.err.println("Socket closed.");
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    this.loops[nextLoop++ % loops.length].register(session, t);
+                } else {
+                    // the handler authenticates on its own thread, so a slow login never holds up accept()
+                    ClientHandler t = new ClientHandler(new SocketSession(client, config, writers), limit);
+                    this.threads.add(t);
+                    this.handlers.execute(t);
+                }
+            } catch (SocketException e) {
+                if (!running) { // check if the socket was supposed to close
+                    Log.info("server.listener.closed");
+                } else {
+                    Log.warn("server.accept.failed", e);
                 }
+            } catch (IOException e) {
+                Log.warn("server.accept.failed", e);
             }
         }
     }
 
+    /**
+     * admit
+     * @description takes a connection slot unless the server is full or overloaded
+     * @return why the connection should be turned away, or null if it has a slot
+     */
+    private String admit() {
+        if (!this.connectionPermits.tryAcquire()) {
+            return "full";
+        }
+        String overload = this.admission.overloaded();
+        if (overload != null) {
+            this.connectionPermits.release();
+        }
+        return overload;
+    }
+
+    /**
+     * reject
+     * @description tells a connection the server can't take it now and closes it. A new
+     * socket's send buffer is empty, so the write doesn't hold up accept()
+     */
+    private void reject(Socket client, String reason) {
+        Metrics.SERVER.connectionsRejected.increment();
+        Log.info("connection.rejected", "remote", client.getRemoteSocketAddress(), "reason", reason);
+        try (client) {
+            client.getOutputStream().write("9\n".getBytes(StandardCharsets.UTF_8)); // the server is busy, try again later
+        } catch (IOException e) {
+            Log.debug("connection.reject.failed", "remote", client.getRemoteSocketAddress(), e);
+        }
+    }
+
+    /**
+     * disconnected
+     * @description frees the connection slot of a client that has gone
+     */
+    private void disconnected(ClientHandler handler) {
+        this.threads.remove(handler);
+        Metrics.SERVER.connectionsActive.decrement();
+        this.connectionPermits.release();
+        this.limiter.close(handler.limit);
+        handler.connection.user = handler.client.getName();
+        handler.connection.commit();
+    }
+
+    /**
+     * startLoops
+     * @description starts the selector threads that service connections in NIO mode
+     */
+    private void startLoops() {
+        this.loops = new IoLoop[config.ioThreads];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                this.loops[i] = new IoLoop(i);
+                this.loops[i].start();
+            }
+        } catch (IOException e) {
+            Log.error("server.loops.failed", e);
+        }
+    }
+
     /**
      * shutdown
      * @author Jonah Shapiro
      * @description shuts down the server
      */
     private void shutdown() {
-        System.out.println("Server shutting down!");
+        Log.info("server.shutting.down");
         this.running = false;
         for (ClientHandler g : this.threads) { // disconnect all clients
             g.running = false; // make sure each client loop stops
+            g.closed = true;
             g.client.disconnect();
         }
         try {
             this.listener.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("server.listener.close.failed", e);
+        }
+        if (this.loops != null) {
+            for (IoLoop loop : this.loops) {
+                loop.shutdown();
+            }
+        }
+        if (this.handlers != null) {
+            this.handlers.shutdown();
+        }
+        if (this.dictionaryWatcher != null) {
+            this.dictionaryWatcher.shutdown();
+        }
+        if (this.hasher != null) {
+            this.hasher.shutdown();
+        }
+        if (this.cluster != null) {
+            this.cluster.shutdown();
+        }
+        if (this.metrics != null) {
+            this.metrics.shutdown();
+        }
+        if (this.admission != null) {
+            this.admission.shutdown();
+        }
+        if (this.rooms != null) {
+            this.rooms.shutdown(); // deliver what is published, then close the histories
+        }
+        if (this.users != null) {
+            this.users.close(); // write out pending account changes
         }
     }
 
     /**
      * send
      * @author Jonah Shapiro
-     * @description sends a message to all clients
+     * @description sends a message to everyone in a room, on every node. The message is
+     * translated and encoded once, and the room's shard queues the same payload for every member
      * @param msg the message to send
      * @param name the name of the sender
+     * @param room where to send it
      */
-    private synchronized void send(String msg, String name) {
-        for (ClientSession session : clients.values()) {
-            if (name.equals("Server")) { // if it is a server broadcast skip bee translation
-                session.write(name + ": " + msg);
-            } else {
-                String[] temp = msg.split(" ");
-                String finalMessage = "";
-                for (String aTemp : temp) {
-                    if (this.beeDictionary.containsKey(aTemp)) {
-                        finalMessage += this.beeDictionary.get(aTemp) + " ";
-                    } else if (this.beeDictionary.containsKey(aTemp.toLowerCase())) {
-                        finalMessage += this.beeDictionary.get(aTemp.toLowerCase()) + " ";
-                    } else {
+    private void send(String msg, String name, Room room) {
+        Metrics.SERVER.messages.increment();
+        Payload payload = encode(msg, name);
+        room.publish(payload);
+        cluster.publish(room, payload);
+    }
 
-                        finalMessage += aTemp + " ";
-                    }
+    /**
+     * sendAll
+     * @description sends a message to every room, on every node
+     */
+    private void sendAll(String msg, String name) {
+        Metrics.SERVER.messages.increment();
+        Payload payload = encode(msg, name);
+        for (Room room : rooms.rooms()) {
+            room.publish(payload);
+        }
+        cluster.publishAll(payload);
+    }
+
+    /**
+     * encode
+     * @description builds the line a message is sent as, translated unless the server sent it
+     */
+    private Payload encode(String msg, String name) {
+        StringBuilder line = LINE.get();
+        line.setLength(0);
+        line.append(name).append(": ");
+        if (name.equals("Server")) { // if it is a server broadcast skip bee translation
+            line.append(msg);
+        } else {
+            long start = System.nanoTime();
+            BeeTranslator translator = this.translator.get();
+            String bee = this.translations.get(msg, translator);
+            if (bee != null) {
+                line.append(bee);
+            } else {
+                int from = line.length();
+                translator.translate(msg, line);
+                if (msg.length() <= TranslationCache.MAX_MESSAGE) {
+                    this.translations.put(msg, translator, line.substring(from));
                 }
-                session.write(name + ": " + finalMessage); // send the message
             }
+            Metrics.SERVER.translateSeconds.record(System.nanoTime() - start);
+        }
+        Payload payload = Payload.line(line);
+        if (line.capacity() > 64 * 1024) { // don't hold on to the buffer of one huge message
+            LINE.remove();
         }
+        return payload;
     }
 
     /**
@@ -198,7 +438,9 @@ public class Server {
      * @description You know what this is
      */
     public static void main(String[] args) {
-        Server server = new Server();
+        ServerConfig config = ServerConfig.parse(args);
+        Log.setLevel(config.logLevel);
+        Server server = new Server(config);
         server.run();
     }
 
@@ -210,68 +452,284 @@ public class Server {
 
         private ClientSession client;
         private boolean running;
+        private boolean closed;
         private boolean admin;
+        private AuthState state; // how far the client is through authentication
+        private String pendingName; // the name being logged in or signed up
+        private long authStart; // when the password being hashed arrived
+        private ServerEvents.Auth auth; // the login or sign up being hashed
+        private final ServerEvents.Connection connection = new ServerEvents.Connection();
+        private final RateLimiter.Limit limit; // how fast the client may send once logged in
+        private boolean throttled; // told it is sending too fast, and hasn't slowed down yet
+        private boolean renaming; // a /nick is waiting for the user store
 
         /**
          * @author Jonah Shapiro
-         * @description initializes a client thread
+         * @description initializes a client handler. Authentication starts with start()
          */
-        ClientHandler(Socket client) {
-            this.client = new ClientSession(client);
-            String name = authenticate(); // authenticate the client
-            if (name.equals("-1")) { // if the name returns a disconnect code
-                System.err.println("Client disconnected during auth.");
-                numClients--;
-                running = false;
-                return;
-            } else if (name.equals("jonah")) { // jonah is the admin
+        ClientHandler(ClientSession client, RateLimiter.Limit limit) {
+            this.client = client;
+            this.limit = limit;
+            this.connection.begin();
+        }
+
+        /**
+         * start
+         * @description sends the first authentication prompt
+         */
+        void start() {
+            prompt();
+        }
+
+        /**
+         * login
+         * @author Jonah Shapiro
+         * @description enters the chat once the client is authenticated
+         */
+        private void login(String name) {
+            if (name.equals("jonah")) { // jonah is the admin
                 this.admin = true;
             }
             this.client.setName(name);
-            clients.put(this.client.getName(), this.client);
-            System.out.println("Client Connected with name " + this.client.getName());
-            send((this.client.getName() + " has connected."), "Server");
+            Log.info("user.login", "name", name);
+            Room lobby = rooms.join(this.client, Room.LOBBY);
+            cluster.joined(this.client, lobby);
+            replayRecent(lobby);
+            announce(this.client.getName() + " has connected.", lobby);
             this.running = true;
-            listClients();
+            if (!this.client.usesFrames()) { // clients using frames ask for the roster with the version they have
+                listClients(1);
+            }
+        }
+
+        /**
+         * announce
+         * @description tells a room someone came or went, unless the room is so big that the
+         * announcements would drown its chat. Clients using frames follow the roster anyway
+         */
+        private void announce(String text, Room room) {
+            if (room.size() <= config.announceMax) {
+                send(text, "Server", room);
+            }
+        }
+
+        /**
+         * replayRecent
+         * @description replays the last lines of a room's history to someone who just came in
+         */
+        private void replayRecent(Room room) {
+            if (room.history() != null && config.historyReplay > 0) {
+                replay(room.history().last(config.historyReplay));
+            }
+        }
+
+        /**
+         * leaveRoom
+         * @description takes the client out of its room, telling the ones left behind why
+         */
+        private void leaveRoom(String reason) {
+            Room room = this.client.getRoom();
+            if (room != null) {
+                rooms.leave(this.client);
+                announce(this.client.getName() + reason, room);
+            }
+        }
+
+        /**
+         * enterRoom
+         * @description moves the client to another room and shows what it missed there
+         */
+        private void enterRoom(String name) {
+            leaveRoom(" has left for " + name + ".");
+            Room room = rooms.join(this.client, name);
+            cluster.joined(this.client, room);
+            replayRecent(room);
+            announce(this.client.getName() + " has joined " + name + ".", room);
+            if (this.client.usesFrames()) { // any roster it had was for the old room
+                this.client.writePresence(snapshot(room));
+            } else {
+                listClients(1);
+            }
+        }
+
+        /**
+         * replay
+         * @description queues lines from the history, framed so they stand apart from new ones
+         */
+        private void replay(List<Payload> lines) {
+            if (lines.isEmpty()) {
+                return;
+            }
+            this.client.writeHistory(lines);
         }
 
         /**
          * listClients
          * @author Jonah Shapiro
-         * @description list the users in the chat
+         * @description list the users in the client's room, a page at a time in name order
          */
-        void listClients() {
-            this.client.write("Users in chat:");
-            this.client.write("------------------------------------");
-            for (String s : clients.keySet()) {
-                this.client.write(s);
+        void listClients(int page) {
+            Room room = this.client.getRoom();
+            List<String> names = names(room);
+            Collections.sort(names);
+            int pages = Math.max(1, (names.size() + config.listPage - 1) / config.listPage);
+            page = Math.min(Math.max(page, 1), pages);
+            int from = (page - 1) * config.listPage;
+            String heading = "Users in " + room.getName() + ":";
+            if (pages > 1) {
+                heading = "Users in " + room.getName() + " (page " + page + " of " + pages + ", " + names.size() + " users"
+                        + (page < pages ? ", \"/list " + (page + 1) + "\" for more" : "") + "):";
             }
-            this.client.write("------------------------------------");
+            this.client.writeRoster(heading, names.subList(from, Math.min(names.size(), from + config.listPage)));
         }
 
-        public void run() {
-            if (!running) { // this is in case the client disconnects during auth
-                return;
+        /**
+         * snapshot
+         * @description the whole roster of a room as a PRESENCE payload, for a client whose
+         * version is too old to catch up
+         */
+        private String snapshot(Room room) {
+            StringBuilder roster = new StringBuilder(room.roster().token()).append("\n="); // the token first, see RosterLog
+            for (String name : names(room)) {
+                roster.append("\n+").append(name);
             }
-            while (running) {
-                String line = this.client.read();
-                if (line != null) { // if the socket is connected
-                    if (line.startsWith("/")) { // is it a command?
-                        command(line.substring(1));
+            return roster.toString();
+        }
+
+        private List<String> names(Room room) {
+            List<String> names = new ArrayList<>();
+            for (ClientSession member : room.members()) {
+                names.add(member.getName());
+            }
+            names.addAll(cluster.members(room.getName())); // users on other nodes
+            return names;
+        }
+
+        /**
+         * run
+         * @description reads lines off a blocking session until it closes. Channel sessions
+         * are read by their IoLoop instead, so only a SocketSession's handler is run
+         */
+        public void run() {
+            SocketSession socket = (SocketSession) this.client;
+            start();
+            while (!closed) {
+                if (socket.usesFrames()) {
+                    Wire.Frame frame = socket.readFrame();
+                    if (frame != null) {
+                        onFrame(frame);
                     } else {
-                        send(line, this.client.getName());
+                        onClose();
                     }
+                    continue;
+                }
+                String line = socket.read();
+                if (line != null) { // if the socket is connected
+                    onLine(line);
                 } else { // if the socket closes gracefully kill everything
-                    this.client.disconnect();
-                    clients.remove(this.client.getName());
-                    send((this.client.getName() + " has left the channel. Reason: Disconnected"), "Server");
-                    System.out.println(this.client.getName() + " disconnected");
-                    numClients--;
-                    this.running = false;
-                    break;
+                    onClose();
+                }
+            }
+        }
+
+        /**
+         * onLine
+         * @description handles one line from the client
+         */
+        synchronized void onLine(String line) {
+            if (closed) {
+                return;
+            }
+            if (!running) { // still logging in
+                authenticate(line);
+            } else if (!allowed()) {
+                return;
+            } else if (line.startsWith("/")) { // is it a command?
+                command(line.substring(1));
+            } else {
+                send(line, this.client.getName(), this.client.getRoom());
+            }
+        }
+
+        /**
+         * onFrame
+         * @description handles one frame from a client that negotiated the binary protocol
+         */
+        synchronized void onFrame(Wire.Frame frame) {
+            if (closed) {
+                return;
+            }
+            String text = frame.text();
+            if (frame.opcode != Wire.PM) {
+                text = text.replace('\n', ' '); // text clients and peers read lines
+            }
+            if (!running) {
+                if (frame.opcode == Wire.AUTH) {
+                    authenticate(text);
                 }
+                return; // nothing else is allowed before login
+            }
+            if (!allowed()) {
+                return;
+            }
+            switch (frame.opcode) {
+                case Wire.CHAT:
+                    send(text, this.client.getName(), this.client.getRoom());
+                    break;
+                case Wire.COMMAND:
+                    command(text);
+                    break;
+                case Wire.PM:
+                    int split = text.indexOf('\n');
+                    if (split > 0) {
+                        privateMessage(text.substring(0, split), text.substring(split + 1).replace('\n', ' '));
+                    }
+                    break;
+                default:
+                    this.client.write("Unknown frame " + frame.opcode);
             }
+        }
 
+        /**
+         * allowed
+         * @description takes a token for a line before it is sent or run. A client over its
+         * rate is told so once, and its lines are dropped until it slows down
+         */
+        private boolean allowed() {
+            if (this.limit.allow()) {
+                this.throttled = false;
+                return true;
+            }
+            Metrics.SERVER.rateLimited.increment();
+            if (!this.throttled) {
+                this.throttled = true;
+                this.client.write("You are sending too fast, slow down.");
+            }
+            return false;
+        }
+
+        /**
+         * onClose
+         * @description cleans up after the client's connection closes
+         */
+        synchronized void onClose() {
+            if (closed) {
+                return;
+            }
+            this.closed = true;
+            if (!running) { // this is in case the client disconnects during auth
+                Log.debug("auth.abandoned");
+                this.client.disconnect(); // a client refused mid-auth, for a bad frame, may still be connected
+                disconnected(this);
+                return;
+            }
+            this.client.disconnect();
+            clients.remove(this.client);
+            leaveRoom(" has left the channel. Reason: Disconnected");
+            cluster.left(this.client.getName());
+            Log.info("user.disconnected", "name", this.client.getName());
+            disconnected(this);
+            this.running = false;
         }
 
         /**
@@ -288,26 +746,38 @@ public class Server {
     * slap [user]: sends "[sender] slaps [user] with a large trout"
     * nick: changes the users nickname
     * pm: privately messages another user. Syntax: "/pm jonah [message]"
-    * list: lists the users in the chat
+    * list: lists the users in your room, a page at a time. Syntax: "/list 2"
+    * roster: sends the room's roster, or what changed since a version. Binary protocol only
+    * join: moves you to another room. Syntax: "/join bees"
+    * part: goes back to the lobby
+    * rooms: lists the rooms
+    * history: replays recent messages. Syntax: "/history 50" or "/history since 2024-01-31T18:00:00Z"
     * help: prints this list of commands
     *
     * Admins get access to the following commands:
     * broadcast: sends a message as the server
+    * queues: shows how far behind each client's outbound queue is
+    * writes: shows how many socket writes and packets the messages sent took
+    * cache: shows translation cache statistics
+    * hashing: shows password hashing statistics
+    * cluster: shows the state of the links to other nodes
     * shutdown: shuts down the server
     *
     */
             String[] command = msg.split(" ");
             switch (command[0]) {
                 case "quit":
+                    this.closed = true;
                     this.client.disconnect();
-                    clients.remove(this.client.getName());
-                    send((this.client.getName() + " has left the channel."), "Server");
+                    clients.remove(this.client);
+                    leaveRoom(" has left the channel.");
+                    cluster.left(this.client.getName());
                     this.running = false;
-                    numClients--;
+                    disconnected(this);
                     break;
 
                 case "slap":
-                    send((this.client.getName() + " slaps " + command[1] + " with a large trout"), "Server");
+                    send((this.client.getName() + " slaps " + command[1] + " with a large trout"), "Server", this.client.getRoom());
                     break;
 
                 case "nick":
@@ -316,13 +786,33 @@ public class Server {
                         break;
                     }
                     String name = command[1];
-                    if (!users.containsKey(name)) {
-                        clients.put(name, clients.remove(this.client.getName()));
-                        users.put(name, users.remove(this.client.getName()));
-                        this.client.setName(name);
-                        writeUsers();
-                    } else {
+                    if (!users.accepts(name)) {
+                        this.client.write("Name is too long!");
+                        break;
+                    }
+                    if (this.renaming) {
+                        this.client.write("Your name is already being changed.");
+                        break;
+                    }
+                    if (cluster.isConnected(name)) {
                         this.client.write("Name already in use.");
+                        break;
+                    }
+                    String old = this.client.getName();
+                    // move the account first so two renames can't both win the name. The store
+                    // may wait on the disk, so that happens on the hashing pool, not this thread
+                    this.renaming = true;
+                    boolean queued = hasher.store(() -> {
+                        boolean moved = false;
+                        try {
+                            moved = users.rename(old, name);
+                        } finally {
+                            renamed(old, name, moved);
+                        }
+                    });
+                    if (!queued) {
+                        this.renaming = false;
+                        this.client.write("The server is busy, try again in a moment.");
                     }
                     break;
 
@@ -331,16 +821,76 @@ public class Server {
                     for (int i = 2; i < command.length; i++) {
                         message += command[i] + " ";
                     }
-                    String target = command[1];
-                    clients.get(target).write("PM from " + this.client.getName() + ": " + message);
+                    privateMessage(command[1], message);
                     break;
 
                 case "help":
-                    this.client.write("Available commands\nquit: disconnects the client from the server\nslap [user]: sends \"[sender] slaps [user] with a large trout\"\nnick: changes the users nickname\npm: privately messages another user. Syntax: \"/pm jonah [message]\"\nhelp: prints this list of commands\nlist: lists the users in the chat.");
+                    this.client.write("Available commands\nquit: disconnects the client from the server\nslap [user]: sends \"[sender] slaps [user] with a large trout\"\nnick: changes the users nickname\npm: privately messages another user. Syntax: \"/pm jonah [message]\"\nhelp: prints this list of commands\nlist: lists the users in your room, a page at a time. Syntax: \"/list 2\"\njoin: moves you to another room. Syntax: \"/join bees\"\npart: goes back to the lobby\nrooms: lists the rooms\nhistory: replays recent messages. Syntax: \"/history 50\" or \"/history since 2024-01-31T18:00:00Z\"");
                     break;
 
                 case "list":
-                    listClients();
+                    try {
+                        listClients(command.length > 1 ? Integer.parseInt(command[1]) : 1);
+                    } catch (NumberFormatException e) {
+                        this.client.write("Syntax: \"/list 2\"");
+                    }
+                    break;
+
+                case "roster":
+                    if (!this.client.usesFrames()) {
+                        this.client.write("The roster stream needs the binary protocol, use /list.");
+                        break;
+                    }
+                    Room here = this.client.getRoom();
+                    String deltas = command.length == 4 ? here.roster().since(command[1] + " " + command[2] + " " + command[3]) : null;
+                    this.client.writePresence(deltas != null ? deltas : snapshot(here));
+                    break;
+
+                case "join":
+                    if (command.length != 2 || !RoomRegistry.isValidName(command[1])) {
+                        this.client.write("Syntax: \"/join bees\". Room names are letters, digits, - and _");
+                    } else if (command[1].equals(this.client.getRoom().getName())) {
+                        this.client.write("You are already in " + command[1] + ".");
+                    } else {
+                        enterRoom(command[1]);
+                    }
+                    break;
+
+                case "part":
+                    if (this.client.getRoom().getName().equals(Room.LOBBY)) {
+                        this.client.write("You are in the lobby.");
+                    } else {
+                        enterRoom(Room.LOBBY);
+                    }
+                    break;
+
+                case "rooms":
+                    Map<String, Integer> sizes = cluster.roomSizes(); // users on other nodes, then this one
+                    for (Room room : rooms.rooms()) {
+                        sizes.merge(room.getName(), room.size(), Integer::sum);
+                    }
+                    List<String> entries = new ArrayList<>();
+                    sizes.forEach((room, size) -> entries.add(room + " (" + size + ")"));
+                    this.client.writeRoster("Rooms:", entries);
+                    break;
+
+                case "history":
+                    MessageLog history = this.client.getRoom().history();
+                    if (history == null) {
+                        this.client.write("History is turned off.");
+                    } else if (command.length == 2 && command[1].matches("\\d{1,9}")) {
+                        replay(history.last(Integer.parseInt(command[1])));
+                    } else if (command.length == 3 && command[1].equals("since")) {
+                        try {
+                            long since = command[2].matches("\\d{1,18}") ? Long.parseLong(command[2])
+                                    : Instant.parse(command[2]).toEpochMilli();
+                            replay(history.since(since));
+                        } catch (DateTimeParseException e) {
+                            this.client.write("Syntax: \"/history since 2024-01-31T18:00:00Z\"");
+                        }
+                    } else {
+                        this.client.write("Syntax: \"/history 50\" or \"/history since 2024-01-31T18:00:00Z\"");
+                    }
                     break;
 
                 case "broadcast":
@@ -349,13 +899,50 @@ public class Server {
                         for (int i = 1; i < command.length; i++) {
                             bc += command[i] + " ";
                         }
-                        send(bc, "Server");
+                        sendAll(bc, "Server");
+                    }
+                    break;
+
+                case "queues":
+                    if (this.admin) {
+                        for (ClientSession session : clients.sessions()) {
+                            OutboundQueue queue = session.outbound();
+                            this.client.write(session.getName() + ": " + queue.size() + " queued, "
+                                    + queue.highWater() + " max, " + queue.dropped() + " dropped");
+                        }
+                    }
+                    break;
+
+                case "writes":
+                    if (this.admin) {
+                        this.client.write(ClientSession.WRITES.summary());
+                    }
+                    break;
+
+                case "cache":
+                    if (this.admin) {
+                        this.client.write("Translation cache: " + translations.hits() + " hits, "
+                                + translations.misses() + " misses, " + translations.evictions() + " evictions, "
+                                + translations.rejections() + " rejected, " + translations.weight() + " chars");
+                    }
+                    break;
+
+                case "hashing":
+                    if (this.admin) {
+                        this.client.write(String.format("Password hashing: %d done, %d refused, %d queued, %.1f ms mean wait, %.1f ms max wait",
+                                hasher.hashed(), hasher.rejected(), hasher.queued(), hasher.meanQueueMillis(), hasher.maxQueueMillis()));
+                    }
+                    break;
+
+                case "cluster":
+                    if (this.admin) {
+                        this.client.write(cluster.stats());
                     }
                     break;
 
                 case "shutdown":
                     if (this.admin) {
-                        send("Server is shutting down!", "Server");
+                        sendAll("Server is shutting down!", "Server");
                         shutdown();
                     }
                     break;
@@ -366,84 +953,257 @@ public class Server {
             }
         }
 
+        /**
+         * privateMessage
+         * @description delivers a private message here or on whichever node the target is on
+         */
+        private void privateMessage(String target, String message) {
+            ClientSession recipient = clients.get(target);
+            if (recipient != null) {
+                recipient.writePrivate(this.client.getName(), message);
+            } else if (!cluster.sendPrivate(target, this.client.getName(), message)) {
+                this.client.write("No such user.");
+            }
+        }
+
+        /**
+         * prompt
+         * @description asks the client for a name, the start of every authentication attempt
+         */
+        private void prompt() {
+            this.state = AuthState.NAME;
+            this.pendingName = null;
+            this.client.writeAuth("0");
+        }
+
+        /**
+         * negotiate
+         * @description answers a request for the binary protocol, which can only come before
+         * the first name. The reply is the last text line; the prompt after it is a frame
+         */
+        private void negotiate(String line) {
+            String[] request = line.split(" ");
+            if (request.length < 2 || !request[1].equals(Wire.VERSION)) {
+                this.client.write(Wire.PROTOCOL + " " + Wire.TEXT);
+                prompt();
+                return;
+            }
+            boolean compress = Arrays.asList(request).contains(Wire.DEFLATE);
+            this.client.write(Wire.PROTOCOL + " " + Wire.VERSION + (compress ? " " + Wire.DEFLATE : ""));
+            this.client.useFrames(compress);
+            prompt();
+        }
+
         /**
          * authenticate
          * @author Jonah Shapiro
-         * @description authenticates the user
+         * @description authenticates the user, one line of the conversation at a time
          */
-        String authenticate() {
-            String name;
-            try {
-                while (true) {
-                    this.client.write("0");
-                    name = this.client.read();
-                    if (name.equals("0")) {
-                        name = this.client.read();
-                        if (name.contains(" ")) {
-                            this.client.write("1"); // the name contains spaces
-                        } else if (users.containsKey(name)) {
-                            this.client.write("6"); // user already exists
-                        } else {
-                            createUser(name);
-                            return name;
-                        }
-                    } else if (name.contains(" ")) {
-                        this.client.write("1"); // the name contains spaces
-                    } else if (clients.containsKey(name)) {
-                        this.client.write("2"); // that user is already connected
-                    } else if (users.containsKey(name)) {
-                        this.client.write("3"); // enter password
-                        String pass = this.client.read();
-                        if (users.get(name).equals(md5(pass))) {
-                            this.client.write("4"); // authentication successful
-                            this.client.write("Welcome, " + name);
-                            return name;
-                        } else {
-                            this.client.write("7"); //incorrect password
+        void authenticate(String line) {
+            switch (this.state) {
+                case NAME:
+                    if (line.startsWith(Wire.PROTOCOL + " ") && !this.client.usesFrames()) {
+                        negotiate(line);
+                        return;
+                    } else if (line.equals("0")) { // the client wants to sign up
+                        this.state = AuthState.NEW_NAME;
+                        return;
+                    } else if (line.contains(" ") || !users.accepts(line)) {
+                        this.client.writeAuth("1"); // the name contains spaces or is too long
+                    } else if (clients.containsName(line) || cluster.isConnected(line)) {
+                        this.client.writeAuth("2"); // that user is already connected
+                    } else if (users.contains(line)) {
+                        this.client.writeAuth("3"); // enter password
+                        this.pendingName = line;
+                        this.state = AuthState.PASSWORD;
+                        return;
+                    } else {
+                        this.client.writeAuth("5"); //user doesn't exist
+                    }
+                    break;
+
+                case NEW_NAME:
+                    if (line.contains(" ") || !users.accepts(line)) {
+                        this.client.writeAuth("1"); // the name contains spaces or is too long
+                    } else if (users.contains(line)) {
+                        this.client.writeAuth("6"); // user already exists
+                    } else {
+                        this.client.writeAuth("10"); // enter a password for the new user
+                        this.pendingName = line;
+                        this.state = AuthState.NEW_PASSWORD;
+                        return;
+                    }
+                    break;
+
+                case PASSWORD:
+                    String stored = users.get(this.pendingName);
+                    if (stored != null) {
+                        this.state = AuthState.HASHING;
+                        startAuth(false);
+                        if (hasher.verify(line, stored, this::checked)) {
+                            return; // checked() carries on once the hash is done
                         }
+                        finishAuth("busy");
+                        this.client.writeAuth("8"); // the server is too busy to log in now
                     } else {
-                        this.client.write("5"); //user doesn't exist
+                        this.client.writeAuth("5"); // the user was renamed while we waited
                     }
-                }
-            } catch (Exception e) {
-                return "-1";
+                    break;
+
+                case NEW_PASSWORD:
+                    this.state = AuthState.HASHING;
+                    startAuth(true);
+                    if (hasher.hash(line, this::createUser)) {
+                        return; // createUser() carries on once the hash is done
+                    }
+                    finishAuth("busy");
+                    this.client.writeAuth("8"); // the server is too busy to sign up now
+                    break;
+
+                case HASHING:
+                    return; // the client shouldn't send anything until it has an answer
+            }
+            prompt();
+        }
+
+        /**
+         * startAuth
+         * @description starts timing a password being checked or hashed
+         */
+        private void startAuth(boolean signUp) {
+            this.authStart = System.nanoTime();
+            this.auth = new ServerEvents.Auth();
+            this.auth.user = this.pendingName;
+            this.auth.signUp = signUp;
+            this.auth.begin();
+        }
+
+        /**
+         * finishAuth
+         * @description records how long the password took and how it went
+         */
+        private void finishAuth(String outcome) {
+            Metrics.SERVER.authSeconds.record(System.nanoTime() - this.authStart);
+            if (outcome.equals("ok")) {
+                Metrics.SERVER.logins.increment();
+            } else if (outcome.equals("wrong password")) {
+                Metrics.SERVER.loginFailures.increment();
+            }
+            this.auth.outcome = outcome;
+            this.auth.commit();
+            this.auth = null;
+        }
+
+        /**
+         * checked
+         * @description finishes a login once the password has been checked, on a hashing thread
+         */
+        private synchronized void checked(PasswordHasher.Check check) {
+            if (closed) {
+                return;
+            }
+            if (check == null) {
+                finishAuth("error");
+                this.client.writeAuth("8"); // checking failed, so ask the client to try again
+                prompt();
+                return;
+            }
+            if (!check.matches) {
+                finishAuth("wrong password");
+                this.client.writeAuth("7"); //incorrect password
+                prompt();
+                return;
+            }
+            if (check.upgrade != null) {
+                users.update(this.pendingName, check.upgrade); // replace an MD5 or cheaper hash
+                cluster.account(this.pendingName, check.upgrade);
+            }
+            this.client.setName(this.pendingName);
+            if (!clients.add(this.client)) {
+                finishAuth("already connected");
+                this.client.writeAuth("2"); // that user connected while we were checking
+                prompt();
+                return;
             }
+            finishAuth("ok");
+            this.client.writeAuth("4"); // authentication successful
+            this.client.write("Welcome, " + this.pendingName);
+            login(this.pendingName);
         }
 
         /**
          * createUser
          * @author Jonah Shapiro
-         * @description Creates a user
+         * @description Creates a user once the new password is hashed, on a hashing thread
          */
-        void createUser(String name) {
-            this.client.write("10");
-            String pass = md5(this.client.read());
-            users.put(name, pass);
-            this.client.write("4");
-            writeUsers();
+        private synchronized void createUser(String pass) {
+            if (closed) {
+                return;
+            }
+            if (pass == null) {
+                finishAuth("error");
+                this.client.writeAuth("8"); // hashing failed, so ask the client to try again
+                prompt();
+                return;
+            }
+            String name = this.pendingName;
+            if (!users.create(name, pass)) {
+                finishAuth("name taken");
+                this.client.writeAuth("6"); // someone else signed up with the name meanwhile
+                prompt();
+                return;
+            }
+            cluster.account(name, pass); // so the new user can log in on any node
+            this.client.setName(name);
+            if (!clients.add(this.client)) {
+                finishAuth("already connected");
+                this.client.writeAuth("2"); // a session took the name meanwhile; the account stays
+                prompt();
+                return;
+            }
+            finishAuth("ok");
+            this.client.writeAuth("4");
+            login(name);
         }
 
         /**
-         * md5
-         *
-         * @author Jonah Shapiro
-         * @description creates an MD5-encrypted string
+         * renamed
+         * @description finishes a /nick once the account has moved, or failed to, on a hashing
+         * thread. The account is moved back if the session has gone or the name was taken by a
+         * session meanwhile
          */
-        String md5(String md5) {
-            try {
-                java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
-                byte[] array = md.digest(md5.getBytes());
-                StringBuilder sb = new StringBuilder();
-                for (byte anArray : array) {
-                    sb.append(Integer.toHexString((anArray & 0xFF) | 0x100).substring(1, 3));
+        private synchronized void renamed(String old, String name, boolean moved) {
+            this.renaming = false;
+            if (!moved) {
+                if (!closed) {
+                    this.client.write("Name already in use.");
                 }
-                return sb.toString();
-            } catch (java.security.NoSuchAlgorithmException e) {
-                System.err.println("MD5 not found!");
+                return;
+            }
+            if (closed || !clients.rename(this.client, name)) {
+                users.rename(name, old);
+                if (!closed) {
+                    this.client.write("Name already in use.");
+                }
+                return;
             }
-            return null;
+            rooms.renamed(this.client, old);
+            cluster.renamed(old, name);
+            cluster.left(old);
+            cluster.joined(this.client, this.client.getRoom());
         }
 
     }
 
+    /**
+     * @description the steps of the authentication conversation in ClientHandler.authenticate()
+     */
+    private enum AuthState {
+        NAME, // waiting for a name, or "0" to sign up
+        NEW_NAME, // waiting for the name to sign up with
+        PASSWORD, // waiting for the password of an existing user
+        NEW_PASSWORD, // waiting for the password of a new user
+        HASHING // waiting for the password to be checked or hashed
+    }
+
 }
@@ -0,0 +1,214 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description Server settings, read from "--key=value" command line arguments
+ */
+class ServerConfig {
+
+    /**
+     * @description how client connections are serviced
+     */
+    enum Mode {
+        THREADS, // one blocking thread per connection
+        VIRTUAL, // one blocking virtual thread per connection
+        NIO // a few selector threads shared by every connection
+    }
+
+    /**
+     * @description what a full outbound queue does with one more line
+     */
+    enum Overflow {
+        DROP_OLDEST, // make room by dropping the oldest queued line
+        DROP_NEWEST, // drop the line being sent
+        DISCONNECT // disconnect the slow client
+    }
+
+    int port = 5000;
+    String dataDir = "src/server"; // users and history, one per node when several run from one tree
+    Mode mode = Mode.THREADS;
+    int ioThreads = Runtime.getRuntime().availableProcessors(); // selector threads in NIO mode
+    int maxConnections = 100; // connections open at once, raise it for the virtual and NIO modes
+    double admitCpu = 0.95; // process CPU load, as a share of every core, over which connections are refused, 0 never
+    long admitQueued = 1_000_000; // payloads queued for clients over which connections are refused, 0 never
+    double rateLimit = 10; // lines a second a logged in session may send, 0 for no limit
+    int rateBurst = 20; // lines a session may send at once before its rate applies
+    double ipRateLimit = 100; // lines a second all the sessions from one address may send, 0 for no limit
+    int ipRateBurst = 200;
+    int queueSize = 16384; // lines queued per client before the overflow policy applies
+    Overflow overflow = Overflow.DISCONNECT;
+    int writeLingerMillis = 0; // how long a write may wait for more to send with it, 0 sends at once
+    boolean reloadDictionary = true; // watch d2.txt and swap in a new dictionary when it changes
+    long cacheChars = 4L << 20; // chars of cached translations, 0 turns the cache off
+    boolean fsyncUsers = true; // force each batch of account changes to disk
+    String userStore = "log"; // "log" keeps every account in memory, "paged" keeps them on disk
+    int userCache = 10000; // accounts the paged store keeps in memory
+    int hashThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); // threads hashing passwords
+    int hashQueue = 64; // password checks waiting for a hashing thread before logins are refused
+    int hashIterations = 600_000; // PBKDF2 cost, raising it upgrades stored hashes at their next login
+    int fanoutThreads = Runtime.getRuntime().availableProcessors(); // shards delivering room messages
+    int listPage = 100; // names per page of /list
+    int announceMax = 100; // rooms bigger than this don't announce joins and leaves as chat lines
+    int presenceBatchMillis = 100; // how long roster changes collect before they are sent
+    int presenceHistory = 4096; // roster changes kept per room for clients catching up
+    boolean history = true; // keep broadcasts on disk and replay them to users who join
+    int historyReplay = 20; // lines replayed on joining
+    int historySegmentBytes = 16 << 20; // size of one history file
+    long historyBytes = 256L << 20; // history kept on disk
+    long historyAgeHours = 24 * 7; // how long history is kept
+    int historyOpen = 256; // room histories open at once; rooms past it keep no history
+    String node = null; // this server's name in the cluster, host:cluster-port if not set
+    int clusterPort = 0; // where peers connect, 0 when not clustered
+    List<String> peers = new ArrayList<>(); // host:cluster-port of every other node
+    int clusterQueue = 65536; // frames waiting for a peer before they are dropped
+    int metricsPort = 0; // where 127.0.0.1 serves /metrics, 0 turns the endpoint off
+    Log.Level logLevel = Log.Level.INFO; // the least important records printed
+
+    /**
+     * parse
+     * @description builds a config from the command line, keeping defaults for missing keys
+     * @param args arguments of the form --key=value
+     */
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --key=value but got " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "data-dir":
+                    config.dataDir = value;
+                    break;
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "io-threads":
+                    config.ioThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "max-connections":
+                    config.maxConnections = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "admit-cpu":
+                    config.admitCpu = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "admit-queued":
+                    config.admitQueued = Math.max(0, Long.parseLong(value));
+                    break;
+                case "rate-limit":
+                    config.rateLimit = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "rate-burst":
+                    config.rateBurst = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "ip-rate-limit":
+                    config.ipRateLimit = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "ip-rate-burst":
+                    config.ipRateBurst = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "queue-size":
+                    config.queueSize = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "write-linger-ms":
+                    config.writeLingerMillis = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "overflow":
+                    config.overflow = Overflow.valueOf(value.toUpperCase());
+                    break;
+                case "reload-dictionary":
+                    config.reloadDictionary = Boolean.parseBoolean(value);
+                    break;
+                case "cache-chars":
+                    config.cacheChars = Math.max(0, Long.parseLong(value));
+                    break;
+                case "fsync-users":
+                    config.fsyncUsers = Boolean.parseBoolean(value);
+                    break;
+                case "user-store":
+                    if (!value.equals("log") && !value.equals("paged")) {
+                        throw new IllegalArgumentException("Unknown user store " + value);
+                    }
+                    config.userStore = value;
+                    break;
+                case "user-cache":
+                    config.userCache = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "hash-threads":
+                    config.hashThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "hash-queue":
+                    config.hashQueue = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "hash-iterations":
+                    config.hashIterations = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "fanout-threads":
+                    config.fanoutThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "list-page":
+                    config.listPage = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "announce-max":
+                    config.announceMax = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "presence-batch-ms":
+                    config.presenceBatchMillis = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "presence-history":
+                    config.presenceHistory = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "history":
+                    config.history = Boolean.parseBoolean(value);
+                    break;
+                case "history-replay":
+                    config.historyReplay = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "history-segment-bytes":
+                    config.historySegmentBytes = Math.max(64 << 10, Integer.parseInt(value));
+                    break;
+                case "history-bytes":
+                    config.historyBytes = Math.max(0, Long.parseLong(value));
+                    break;
+                case "history-age-hours":
+                    config.historyAgeHours = Math.max(0, Long.parseLong(value));
+                    break;
+                case "history-open":
+                    config.historyOpen = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "node":
+                    config.node = value;
+                    break;
+                case "cluster-port":
+                    config.clusterPort = Integer.parseInt(value);
+                    break;
+                case "peers":
+                    for (String peer : value.split(",")) {
+                        if (!peer.isEmpty()) {
+                            config.peers.add(peer);
+                        }
+                    }
+                    break;
+                case "cluster-queue":
+                    config.clusterQueue = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "metrics-port":
+                    config.metricsPort = Integer.parseInt(value);
+                    break;
+                case "log-level":
+                    config.logLevel = Log.Level.valueOf(value.toUpperCase());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + key);
+            }
+        }
+        return config;
+    }
+
+}
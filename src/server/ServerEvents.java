@@ -0,0 +1,94 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * @description The server's JDK Flight Recorder events, so a recording shows logins,
+ * broadcasts and connections next to the GC and thread events of the same moment. They cost
+ * nothing unless a recording enables them, e.g. java -XX:StartFlightRecording=filename=bee.jfr,
+ * and can be read with "jfr print --categories Bee bee.jfr".
+ */
+final class ServerEvents {
+
+    private ServerEvents() {
+    }
+
+    /**
+     * register
+     * @description starts emitting the periodic Stats event. Needs a snapshot of the gauges,
+     * which only the server can take, so the server passes it in
+     */
+    static void register(Runnable stats) {
+        FlightRecorder.addPeriodicEvent(Stats.class, stats);
+    }
+
+    @Name("bee.Auth")
+    @Label("Authentication")
+    @Category("Bee")
+    @Description("A login or sign up, from the password arriving to the answer")
+    @StackTrace(false)
+    static final class Auth extends Event {
+        @Label("User")
+        String user;
+        @Label("Sign Up")
+        boolean signUp;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("bee.Broadcast")
+    @Label("Broadcast")
+    @Category("Bee")
+    @Description("A message queued for every member of a room")
+    @StackTrace(false)
+    static final class Broadcast extends Event {
+        @Label("Room")
+        String room;
+        @Label("Members")
+        int members;
+        @Label("Fan-out")
+        @Description("From publishing the message to it being queued for the last member")
+        @Timespan(Timespan.NANOSECONDS)
+        long fanout;
+    }
+
+    @Name("bee.Connection")
+    @Label("Connection")
+    @Category("Bee")
+    @Description("A client connection, from accept to close")
+    @StackTrace(false)
+    static final class Connection extends Event {
+        @Label("User")
+        String user; // null if it never logged in
+    }
+
+    @Name("bee.Stats")
+    @Label("Server Statistics")
+    @Category("Bee")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class Stats extends Event {
+        @Label("Active Connections")
+        long connections;
+        @Label("Queued Payloads")
+        long queued;
+        @Label("Longest Queue")
+        long maxQueue;
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+    }
+
+}
@@ -0,0 +1,84 @@
+package server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @description The connected, authenticated sessions, safe to use from every handler thread.
+ * Broadcasts iterate a set of sessions rather than the name map, so a rename, which briefly
+ * has both names mapped, never makes anyone receive a message twice. Iteration takes no lock
+ * and reflects sessions as they come and go.
+ */
+class SessionRegistry {
+
+    private final ConcurrentHashMap<String, ClientSession> byName = new ConcurrentHashMap<>();
+    private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * add
+     * @description registers a session under its name
+     * @return false if another session already has the name
+     */
+    boolean add(ClientSession session) {
+        if (byName.putIfAbsent(session.getName(), session) != null) {
+            return false;
+        }
+        sessions.add(session);
+        return true;
+    }
+
+    /**
+     * remove
+     * @description unregisters a session, if it is still registered
+     */
+    void remove(ClientSession session) {
+        sessions.remove(session);
+        byName.remove(session.getName(), session);
+    }
+
+    /**
+     * rename
+     * @description moves a session to a new name in one step
+     * @return false if the new name is taken
+     */
+    boolean rename(ClientSession session, String name) {
+        if (byName.putIfAbsent(name, session) != null) {
+            return false;
+        }
+        String old = session.getName();
+        session.setName(name);
+        byName.remove(old, session);
+        return true;
+    }
+
+    ClientSession get(String name) {
+        return byName.get(name);
+    }
+
+    boolean containsName(String name) {
+        return byName.containsKey(name);
+    }
+
+    /**
+     * names
+     * @description a live view of the names in use
+     */
+    Set<String> names() {
+        return Collections.unmodifiableSet(byName.keySet());
+    }
+
+    /**
+     * sessions
+     * @description a live view of the sessions, for broadcasting
+     */
+    Collection<ClientSession> sessions() {
+        return Collections.unmodifiableSet(sessions);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+}
@@ -0,0 +1,214 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Jonah Shapiro
+ * @description A client session over a blocking socket, read by its handler thread and
+ * written by a writer thread of its own
+ */
+class SocketSession extends ClientSession {
+
+    private static final int BUFFER_SIZE = 64 * 1024; // a batch is written in calls of up to this size
+
+    private Socket socket;
+    private InputStream in; // the socket's stream, counting what is read
+    private BufferedReader reader;
+    private InputStream frames; // replaces the reader once the client switches to frames
+    private OutputStream out;
+    private WritableByteChannel channel; // for file regions, which skip the stream
+    private boolean countRegions; // regions go straight to the socket rather than through out
+    private final long lingerNanos;
+
+    SocketSession(Socket socket, ServerConfig config, ThreadFactory writers) { //initialize the session
+        super(config.queueSize, config.overflow);
+        this.socket = socket;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(config.writeLingerMillis);
+        try {
+            this.in = new CountedIn(socket.getInputStream());
+            this.reader = new BufferedReader(new InputStreamReader(this.in));
+            this.out = new BufferedOutputStream(new Counted(socket.getOutputStream()), BUFFER_SIZE);
+            // sockets accepted through a channel can take file regions without a copy
+            this.countRegions = socket.getChannel() != null;
+            this.channel = this.countRegions ? socket.getChannel() : Channels.newChannel(this.out);
+        } catch (IOException e) {
+            Log.error("socket.open.failed", "remote", socket.getRemoteSocketAddress(), e);
+        }
+        writers.newThread(this::drain).start();
+    }
+
+    /**
+     * drain
+     * @description the writer loop: writes whatever is queued, flushing once per batch, and
+     * closes the socket after the queue is closed and empty. The buffer turns a batch of lines
+     * into as few socket writes as its size allows
+     */
+    private void drain() {
+        List<Payload> batch = new ArrayList<>();
+        try {
+            while (outbound().awaitDrain(batch, this.lingerNanos)) {
+                for (Payload line : batch) {
+                    if (line.isRegion()) {
+                        this.out.flush(); // keep what is buffered ahead of the region
+                        for (long sent = 0; sent < line.length(); ) {
+                            long n = line.transferTo(sent, this.channel);
+                            if (this.countRegions) {
+                                WRITES.wrote(n);
+                            }
+                            sent += n;
+                        }
+                        line.release();
+                    } else {
+                        line.writeTo(this.out);
+                    }
+                }
+                this.out.flush();
+                WRITES.sent(batch.size());
+                batch.clear();
+            }
+        } catch (IOException e) {
+            Log.debug("socket.closed", "name", getName(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Payload line : batch) { // what the failed batch didn't get to
+                line.release();
+            }
+            outbound().close();
+            outbound().clear();
+            close();
+        }
+    }
+
+    void wakeWriter() {
+        // the writer is blocked in awaitDrain() and is signalled by the queue itself
+    }
+
+    void abort() {
+        outbound().close();
+        outbound().clear();
+        close();
+    }
+
+    /**
+     * read
+     * @author Jonah Shapiro
+     * @description Reads data from the client
+     * @return null if socket closed, else the data
+     */
+    String read(){
+        String line = null;
+        try {
+            line = this.reader.readLine();
+        }catch (SocketException e) {
+            Log.debug("socket.closed", "name", getName(), e);
+        } catch (IOException e) {
+            Log.warn("socket.read.failed", "name", getName(), e);
+        }
+        return line;
+    }
+
+    /**
+     * readFrame
+     * @description reads the next frame from a client that negotiated the binary protocol
+     * @return null if the socket closed or sent a bad frame
+     */
+    Wire.Frame readFrame() {
+        try {
+            if (this.frames == null) { // the client waits for the switch, so the reader holds nothing more
+                this.frames = new BufferedInputStream(this.in);
+            }
+            return Wire.read(this.frames, FrameDecoder.MAX_FRAME, false);
+        } catch (IOException e) {
+            Log.debug("socket.closed", "name", getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * disconnect
+     * @author Jonah Shapiro
+     * @description Gracefully shuts down the client. The writer closes the socket once
+     * everything queued, including the goodbye, has been sent
+     */
+    boolean disconnect(){
+        this.write("Quitting...");
+        outbound().close();
+        return true;
+    }
+
+    private void close() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            Log.warn("socket.close.failed", "name", getName(), e);
+        }
+    }
+
+    /**
+     * @description the socket's stream, counting each write made to it
+     */
+    private static final class Counted extends FilterOutputStream {
+
+        Counted(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            WRITES.wrote(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            WRITES.wrote(len);
+        }
+    }
+
+    /**
+     * @description the socket's input, counting the bytes read from it
+     */
+    private static final class CountedIn extends FilterInputStream {
+
+        CountedIn(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                Metrics.SERVER.bytesIn.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                Metrics.SERVER.bytesIn.add(n);
+            }
+            return n;
+        }
+    }
+
+}
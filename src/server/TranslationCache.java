@@ -0,0 +1,244 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @description A bounded cache of whole-message translations in front of the dictionary.
+ * Chat is repetitive, so the same greetings and phrases come round again and again.
+ *
+ * Entries are weighed by their length in chars and spread over segments, each an LRU list
+ * under its own lock. Admission follows TinyLFU: a small count-min sketch remembers how often
+ * each message has been seen, and a new message only displaces the least recently used one
+ * if it has been seen more often. One-off messages therefore can't flush the popular ones.
+ *
+ * Each entry remembers the translator that produced it, so entries made before a dictionary
+ * reload stop matching as soon as the new translator is in use.
+ */
+class TranslationCache {
+
+    private static final int SEGMENTS = 16;
+    static final int MAX_MESSAGE = 512; // longer messages are rarely repeated and not worth the space
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final FrequencySketch sketch;
+    private final boolean enabled;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder(); // refused by the admission filter
+
+    /**
+     * @param maxWeight the most chars of messages and translations to hold, 0 to disable
+     */
+    TranslationCache(long maxWeight) {
+        this.enabled = maxWeight > 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(maxWeight / SEGMENTS);
+        }
+        // about one counter per 32 chars of capacity is plenty for typical chat lines
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(64, maxWeight / 32)));
+    }
+
+    /**
+     * get
+     * @description the cached translation of a message, or null
+     * @param translator the translator in use now; entries from other translators don't count
+     */
+    String get(String msg, BeeTranslator translator) {
+        if (!enabled || msg.length() > MAX_MESSAGE) {
+            return null;
+        }
+        sketch.increment(msg.hashCode());
+        Entry entry = segment(msg).get(msg);
+        if (entry != null && entry.translator == translator) {
+            hits.increment();
+            return entry.translation;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * put
+     * @description offers a translation to the cache, which may turn it away
+     */
+    void put(String msg, BeeTranslator translator, String translation) {
+        if (!enabled || msg.length() > MAX_MESSAGE) {
+            return;
+        }
+        segment(msg).put(msg, new Entry(translator, translation));
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long rejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * weight
+     * @description chars currently held
+     */
+    long weight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            weight += segment.weight;
+        }
+        return weight;
+    }
+
+    private Segment segment(String msg) {
+        int hash = msg.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * @description a cached translation
+     */
+    private static final class Entry {
+        final BeeTranslator translator;
+        final String translation;
+
+        Entry(BeeTranslator translator, String translation) {
+            this.translator = translator;
+            this.translation = translation;
+        }
+    }
+
+    /**
+     * @description one lock's worth of the cache, kept in least recently used order
+     */
+    private final class Segment {
+
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long maxWeight;
+        private volatile long weight;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        Entry get(String msg) {
+            lock.lock();
+            try {
+                return entries.get(msg);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(String msg, Entry entry) {
+            long size = weigh(msg, entry);
+            if (size > maxWeight) {
+                return;
+            }
+            lock.lock();
+            try {
+                Entry old = entries.remove(msg);
+                long weight = this.weight - (old == null ? 0 : weigh(msg, old));
+                int frequency = sketch.frequency(msg.hashCode());
+                Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+                while (weight + size > maxWeight && eldest.hasNext()) {
+                    Map.Entry<String, Entry> victim = eldest.next();
+                    if (old == null && sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+                        rejections.increment(); // the newcomer is less popular than what it would replace
+                        this.weight = weight;
+                        return;
+                    }
+                    weight -= weigh(victim.getKey(), victim.getValue());
+                    eldest.remove();
+                    evictions.increment();
+                }
+                entries.put(msg, entry);
+                this.weight = weight + size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long weigh(String msg, Entry entry) {
+            return msg.length() + entry.translation.length();
+        }
+    }
+
+    /**
+     * @description a count-min sketch of 4-bit counters that halves itself periodically, so
+     * popularity reflects recent traffic. Updates from different segments may race; a lost
+     * increment only makes an estimate slightly low, which is fine for admission decisions.
+     */
+    private static final class FrequencySketch {
+
+        private final long[] table; // sixteen 4-bit counters per long
+        private final int mask;
+        private final int sampleSize; // increments between halvings
+        private int additions;
+
+        FrequencySketch(int counters) {
+            int longs = Integer.highestOneBit(Math.max(counters / 16, 1) * 2 - 1);
+            this.table = new long[Math.max(longs, 1)];
+            this.mask = this.table.length - 1;
+            this.sampleSize = 10 * counters;
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                frequency = Math.min(frequency, count(hash, i));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = index(hash, i);
+                int shift = offset(hash, i);
+                if (((table[index] >>> shift) & 0xF) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private int count(int hash, int i) {
+            return (int) ((table[index(hash, i)] >>> offset(hash, i)) & 0xF);
+        }
+
+        private int index(int hash, int i) {
+            int h = (hash + i) * 0x9E3779B9;
+            return (h ^ (h >>> 17)) & mask;
+        }
+
+        private int offset(int hash, int i) {
+            int h = (hash * 0x85EBCA6B) >>> (i * 8);
+            return ((h & 0xF)) << 2;
+        }
+
+        private void reset() {
+            additions = 0;
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package server;
+
+/**
+ * @description Where user accounts (name and password hash) are kept. Implementations are
+ * safe to use from every handler thread at once.
+ */
+interface UserStore {
+
+    /**
+     * get
+     * @description the stored password hash of a user, or null if there is no such user
+     */
+    String get(String name);
+
+    boolean contains(String name);
+
+    /**
+     * size
+     * @description the number of accounts
+     */
+    long size();
+
+    /**
+     * accepts
+     * @description whether the store can keep an account with this name; check it before
+     * create or rename to tell the client why a name is refused
+     */
+    boolean accepts(String name);
+
+    /**
+     * create
+     * @description adds a user unless the name is taken
+     * @return false if the name is taken, or the name or hash can't be stored
+     */
+    boolean create(String name, String password);
+
+    /**
+     * update
+     * @description replaces the stored password hash of an existing user, if it can be stored
+     */
+    void update(String name, String password);
+
+    /**
+     * rename
+     * @description moves an account to a new name
+     * @return false if there is no such account, or the new name is taken or can't be stored
+     */
+    boolean rename(String from, String to);
+
+    /**
+     * close
+     * @description writes out anything pending and releases the files
+     */
+    void close();
+
+}
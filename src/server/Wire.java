@@ -0,0 +1,223 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @description The binary wire protocol, shared by the server and the client.
+ *
+ * A connection starts in the text protocol: the server sends "0" and a legacy client answers
+ * with a name. A client that wants frames answers with "PROTOCOL bee/1", or
+ * "PROTOCOL bee/1 deflate" to also accept compressed frames, and then waits. The server
+ * replies with the protocol it agreed to ("PROTOCOL text" if it can't), and from the end of
+ * that line both sides send frames. Names can't contain spaces, so no legacy login looks like
+ * the request.
+ *
+ * A frame is its length as an unsigned LEB128 varint, then an opcode byte, then the payload;
+ * the length counts the opcode and the payload. When the opcode's top bit is set the payload
+ * is deflated. Only the server compresses, and only rosters and history, the frames that can
+ * be large. Text payloads are UTF-8.
+ *
+ * PRESENCE frames keep a client's copy of its room's roster current. The first line is the
+ * token of the roster version the frame brings the client to; each line after it is a change:
+ * "+name" joined, "-name" left, "~old new" renamed, or "=" to forget every name before it.
+ * The server pushes changes in batches to every client using frames. A client that wants the
+ * roster asks with the command "roster", adding the last token it saw if it has one; it gets
+ * the changes since that token if the server still has them, and otherwise "=" and every name.
+ * Changes may repeat ones already applied, so apply them as set operations.
+ */
+public final class Wire {
+
+    public static final String PROTOCOL = "PROTOCOL"; // the negotiation line starts with this
+    public static final String VERSION = "bee/1";
+    public static final String DEFLATE = "deflate";
+    public static final String TEXT = "text";
+
+    // opcodes
+    public static final int AUTH = 1; // an authentication step: the codes "0" to "10" one way, names and passwords the other
+    public static final int CHAT = 2; // a chat line, "name: text" from the server, the text from a client
+    public static final int INFO = 3; // a message from the server, possibly several lines
+    public static final int PM = 4; // a private message, "from\ntext" from the server, "to\ntext" from a client
+    public static final int ROSTER = 5; // a heading, then a name per line
+    public static final int HISTORY = 6; // chat lines, each ending in a newline
+    public static final int COMMAND = 7; // a command without its "/", from a client
+    public static final int PRESENCE = 8; // a roster token, then changes to the room's roster, one per line
+
+    static final int COMPRESSED = 0x80; // set on the opcode of a deflated payload
+    static final int MIN_COMPRESS = 256; // smaller payloads aren't worth deflating
+    static final int MAX_INFLATED = 64 << 20; // largest payload a compressed frame may inflate to
+
+    private Wire() {
+    }
+
+    /**
+     * @description a frame as read off the wire, already inflated
+     */
+    public static final class Frame {
+        public final int opcode;
+        public final byte[] payload;
+
+        Frame(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        public String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * write
+     * @description writes a frame with a text payload
+     */
+    public static void write(OutputStream out, int opcode, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, payload.length + 1);
+        out.write(opcode);
+        out.write(payload);
+    }
+
+    /**
+     * read
+     * @description reads the next frame, inflating it if needed
+     * @param maxLength the longest frame accepted
+     * @param compressed whether compressed frames are accepted; only the server sends them,
+     * so it reads with false, as FrameDecoder does
+     * @return null at the end of the stream
+     */
+    public static Frame read(InputStream in, int maxLength, boolean compressed) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new EOFException("Frame cut short");
+            }
+            if (shift > 28) {
+                throw new IOException("Bad frame length");
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 1 || length > maxLength) {
+            throw new IOException("Bad frame length " + length);
+        }
+        int opcode = in.read();
+        byte[] payload = in.readNBytes(length - 1);
+        if (opcode < 0 || payload.length < length - 1) {
+            throw new EOFException("Frame cut short");
+        }
+        if ((opcode & COMPRESSED) != 0) {
+            if (!compressed) {
+                throw new IOException("Clients may not send compressed frames");
+            }
+            return new Frame(opcode & ~COMPRESSED, inflate(payload, MAX_INFLATED));
+        }
+        return new Frame(opcode, payload);
+    }
+
+    /**
+     * readLine
+     * @description reads a text line byte by byte, so nothing after it is buffered and lost
+     * when the connection switches to frames
+     * @return null at the end of the stream
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int end = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    static int putVarint(byte[] bytes, int at, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[at++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[at++] = (byte) value;
+        return at;
+    }
+
+    static byte[] deflate(byte[] bytes, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * inflate
+     * @description inflates a payload, giving up once it passes a limit so a small frame
+     * can't ask for unbounded memory
+     * @param limit the most bytes the payload may inflate to
+     */
+    static byte[] inflate(byte[] bytes, int limit) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(limit, bytes.length * 4L));
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed frame cut short");
+                }
+                out.write(chunk, 0, n);
+                if (out.size() > limit) {
+                    throw new IOException("Compressed frame inflates past " + limit + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @description Counts what the sessions write: payloads sent, write calls made to sockets and
+ * the bytes they carried. Packets are estimated from the size of each write, since Java can't
+ * see the segments the kernel sends; a write of n bytes takes at least n / MSS of them.
+ */
+class WriteStats {
+
+    static final int MSS = 1448; // payload of a full segment on Ethernet with TCP timestamps
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder packets = new LongAdder();
+
+    /**
+     * sent
+     * @description counts payloads handed to the socket
+     */
+    void sent(int count) {
+        messages.add(count);
+    }
+
+    /**
+     * wrote
+     * @description counts one write call to a socket that took n bytes
+     */
+    void wrote(long n) {
+        writes.increment();
+        bytes.add(n);
+        packets.add(Math.max(1, (n + MSS - 1) / MSS));
+    }
+
+    long messages() {
+        return messages.sum();
+    }
+
+    long writes() {
+        return writes.sum();
+    }
+
+    long bytes() {
+        return bytes.sum();
+    }
+
+    long packets() {
+        return packets.sum();
+    }
+
+    /**
+     * summary
+     * @description one line for the /writes command
+     */
+    String summary() {
+        long messages = messages();
+        double perMessage = Math.max(1, messages);
+        return String.format("Writes: %d messages, %d write calls (%.3f per message), ~%d packets (%.3f per message), %d bytes",
+                messages, writes(), writes() / perMessage, packets(), packets() / perMessage, bytes());
+    }
+
+}